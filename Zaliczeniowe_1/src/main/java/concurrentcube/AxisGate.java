@@ -0,0 +1,16 @@
+package concurrentcube;
+
+// decides which group of operations may work on the cube: rotations of one axis can run together
+// (one group per axis), show() is a group of its own. Groups never work at the same time.
+// WHOLE is for whoever changes the whole cube at once, only one of them works at a time - rotations hold
+// their layers only while in their group, so nobody holds any layer then, however large the cube is.
+interface AxisGate {
+
+    int SHOW = 3;
+    int WHOLE = 4;
+
+    // waits until the group may work on the cube and joins it
+    void enter(int group) throws InterruptedException;
+
+    void leave();
+}
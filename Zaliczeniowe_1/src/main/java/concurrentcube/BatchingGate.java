@@ -0,0 +1,135 @@
+package concurrentcube;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// collects waiting operations by group and lets a whole group in at once. When the group working now
+// has left, the group that has been waiting the longest goes next, together with everybody of that group
+// who has come in the meantime. Latecomers may still join a working group while other groups wait,
+// but only for batching_window nanoseconds and at most starvation_bound of them, so no group waits forever.
+class BatchingGate implements AxisGate {
+
+    private static final int GROUP_CNT = 5;
+
+    private final long batching_window;
+    private final int starvation_bound;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition[] queues = new Condition[GROUP_CNT];
+
+    private int current_group = SHOW;
+    private int working = 0;
+    private final int[] waiting = new int[GROUP_CNT];
+    private final long[] waiting_since = new long[GROUP_CNT];
+
+    // every time a group is let in, switches grows - who has arrived before that belongs to the batch
+    private long switches = 0;
+    private int latecomers = 0;
+
+    public BatchingGate(long batching_window, int starvation_bound) {
+        this.batching_window = batching_window;
+        this.starvation_bound = starvation_bound;
+
+        for (int group = 0; group < GROUP_CNT; group++) {
+            queues[group] = lock.newCondition();
+        }
+    }
+
+    // when did the first operation of a group other than this one start waiting, -1 if there is none
+    private long others_waiting_since(int group) {
+        long since = -1;
+        for (int other = 0; other < GROUP_CNT; other++) {
+            if (other != group && waiting[other] > 0 && (since == -1 || waiting_since[other] - since < 0)) {
+                since = waiting_since[other];
+            }
+        }
+        return since;
+    }
+
+    private void let_in(int group) {
+        current_group = group;
+        switches++;
+        latecomers = 0;
+        queues[group].signalAll();
+    }
+
+    // nobody is working, let the next group in
+    private void reschedule() {
+        long since = others_waiting_since(current_group);
+        if (since != -1) {
+            for (int group = 0; group < GROUP_CNT; group++) {
+                if (group != current_group && waiting[group] > 0 && waiting_since[group] == since) {
+                    let_in(group);
+                    return;
+                }
+            }
+        }
+        queues[current_group].signalAll();
+    }
+
+    private boolean may_enter(int group, long arrival) {
+        if (group == WHOLE && working > 0) {
+            return false; // the whole cube is for one at a time
+        }
+        if (group != current_group) {
+            if (working > 0 || others_waiting_since(group) != -1) {
+                return false;
+            }
+            let_in(group);
+            return true;
+        }
+        if (arrival < switches) {
+            return true; // we have been waiting for this group to be let in
+        }
+
+        long since = others_waiting_since(group);
+        return since == -1 || (latecomers < starvation_bound && System.nanoTime() - since < batching_window);
+    }
+
+    @Override
+    public void enter(int group) throws InterruptedException {
+        lock.lock();
+        try {
+            long arrival = switches;
+            if (waiting[group]++ == 0) {
+                waiting_since[group] = System.nanoTime();
+            }
+
+            try {
+                while (!may_enter(group, arrival)) {
+                    queues[group].await();
+                }
+            } finally {
+                waiting[group]--;
+            }
+
+            if (arrival == switches && others_waiting_since(group) != -1) {
+                latecomers++;
+            }
+            working++;
+        } catch (InterruptedException e) {
+            // somebody may have been waiting only because of us
+            if (working == 0) {
+                reschedule();
+            } else {
+                queues[current_group].signalAll();
+            }
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void leave() {
+        lock.lock();
+        try {
+            working--;
+            if (working == 0) {
+                reschedule();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package concurrentcube;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+// takes the calls of beforeRotation and afterRotation off the rotating threads: a call only puts its event
+// (side, layer, phase) at the next sequence number of a ring allocated once, and a task on the executor
+// passes the events to the real callbacks in the order of their sequence numbers, as many as are there at once.
+// A rotating thread waits only when the ring is full.
+class CallbackDispatcher {
+
+    static final int BEFORE = 0;
+    static final int AFTER = 1;
+
+    // how many events the task passes on before it frees their places in the ring
+    private static final int BATCH = 64;
+    private static final long FULL_WAIT = 1000; // ns
+
+    private final BiConsumer<Integer, Integer> beforeRotation;
+    private final BiConsumer<Integer, Integer> afterRotation;
+    private final Executor executor;
+
+    private final int mask;
+    private final long[] events; // layer << 4 | phase << 3 | side
+    private final AtomicLongArray published; // sequence number of the event that is ready in the place
+    private final AtomicLong claimed = new AtomicLong(0);
+    private final AtomicLong consumed = new AtomicLong(0);
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+
+    public CallbackDispatcher(int capacity,
+                              BiConsumer<Integer, Integer> beforeRotation,
+                              BiConsumer<Integer, Integer> afterRotation,
+                              Executor executor) {
+        int places = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1; // the nearest power of two
+        this.mask = places - 1;
+        this.events = new long[places];
+        this.published = new AtomicLongArray(places);
+        for (int i = 0; i < places; i++) {
+            published.set(i, -1);
+        }
+        this.beforeRotation = beforeRotation;
+        this.afterRotation = afterRotation;
+        this.executor = executor;
+    }
+
+    public void publish(int side, int layer, int phase) {
+        long sequence = claimed.getAndIncrement();
+        while (sequence - consumed.get() > mask) {
+            LockSupport.parkNanos(FULL_WAIT); // full, the task is running as there are events to pass on
+        }
+
+        int place = (int) sequence & mask;
+        events[place] = (long) layer << 4 | phase << 3 | side;
+        published.set(place, sequence);
+
+        if (!draining.get() && draining.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    // the task, never runs twice at once
+    private void drain() {
+        do {
+            long next = consumed.get();
+            while (published.get((int) next & mask) == next) {
+                deliver(events[(int) next & mask]);
+                next++;
+                if ((next & (BATCH - 1)) == 0) {
+                    consumed.set(next);
+                }
+            }
+            consumed.set(next);
+            draining.set(false);
+            // an event published while we were leaving could have seen draining still set
+        } while (published.get((int) consumed.get() & mask) == consumed.get() && draining.compareAndSet(false, true));
+    }
+
+    private void deliver(long event) {
+        int side = (int) (event & 7);
+        int layer = (int) (event >>> 4);
+        try {
+            if ((event >>> 3 & 1) == BEFORE) {
+                beforeRotation.accept(side, layer);
+            } else {
+                afterRotation.accept(side, layer);
+            }
+        } catch (Throwable e) {
+            // a failing callback must not stop the events after it
+            Thread thread = Thread.currentThread();
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        }
+    }
+
+    // waits until every event published before the call has been passed on
+    public void await() throws InterruptedException {
+        long target = claimed.get();
+        while (consumed.get() < target) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            LockSupport.parkNanos(FULL_WAIT);
+        }
+    }
+}
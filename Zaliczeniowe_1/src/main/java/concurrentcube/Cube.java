@@ -1,10 +1,33 @@
 package concurrentcube;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.VarHandle;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiConsumer;
 
-public class Cube {
+public class Cube implements AutoCloseable {
 
     // Useful 'aliases'
     private static final int SIDE_CNT = 6;
@@ -84,132 +107,1140 @@ public class Cube {
         {Layer.MIRRORED, Layer.MIRRORED, Layer.DEFAULT, Layer.MIRRORED, Layer.DEFAULT, Layer.MIRRORED} // looking at the 5 (bottom) face
     };
 
+    // turning the whole cube clockwise as seen from the i-th face, no piece changes its face: the faces only move
+    // to other places and turn. Which face comes to the place of the face f?
+    // for example turning the cube clockwise as seen from the 2 (front) face, the 1 (left) face comes to the top,
+    // so arr[2][0] = 1.
+    final static int[][] reoriented_from = {
+        {0, 2, 3, 4, 1, 5}, // turning as seen from the 0 (top)    face
+        {4, 1, 0, 3, 5, 2}, // turning as seen from the 1 (left)   face
+        {1, 5, 2, 0, 4, 3}, // turning as seen from the 2 (front)  face
+        {2, 1, 5, 3, 0, 4}, // turning as seen from the 3 (right)  face
+        {3, 0, 2, 5, 4, 1}, // turning as seen from the 4 (back)   face
+        {0, 4, 1, 2, 3, 5}  // turning as seen from the 5 (bottom) face
+    };
+
+    // turning the whole cube clockwise as seen from the i-th face, how many quarter turns clockwise does the face
+    // coming to the place of the face f get?
+    // for example turning the cube clockwise as seen from the 2 (front) face, the 1 (left) face coming to the top
+    // is turned once, so arr[2][0] = 1.
+    final static int[][] reoriented_spins = {
+        {1, 0, 0, 0, 0, 3}, // turning as seen from the 0 (top)    face
+        {2, 1, 0, 3, 2, 0}, // turning as seen from the 1 (left)   face
+        {1, 1, 1, 1, 3, 1}, // turning as seen from the 2 (front)  face
+        {0, 3, 0, 1, 2, 2}, // turning as seen from the 3 (right)  face
+        {3, 3, 3, 3, 1, 3}, // turning as seen from the 4 (back)   face
+        {3, 0, 0, 0, 0, 1}  // turning as seen from the 5 (bottom) face
+    };
+
+    // How rotations of different axes (and show()) take turns
+    public enum Scheduler {
+        // in the order of arrival, whoever comes first goes first - the original solution
+        FAIR,
+        // the group of the axis that has waited the longest goes next, with everybody of that axis waiting
+        BATCHING
+    }
+
+    // What kind of semaphores guard the layers (and the axes, with the FAIR scheduler)
+    public enum LockStrategy {
+        // waiting threads get the permits in the order they came, every contended acquire parks the thread
+        FAIR {
+            Semaphore semaphore(int permits) {
+                return new Semaphore(permits, true);
+            }
+        },
+        // whoever asks when the permits are free takes them, even if somebody else has been waiting longer
+        BARGING {
+            Semaphore semaphore(int permits) {
+                return new Semaphore(permits, false);
+            }
+        },
+        // barging, but spins for a while before parking, how long depends on how often spinning has helped
+        SPIN_THEN_PARK {
+            Semaphore semaphore(int permits) {
+                return new SpinningSemaphore(permits);
+            }
+        };
+
+        abstract Semaphore semaphore(int permits);
+    }
+
+    // Who is going to call the cube. Nothing in the cube waits in synchronized or Object.wait(), only in
+    // Semaphores and ReentrantLocks, so virtual threads waiting for the cube never pin their carrier threads
+    public enum ThreadMode {
+        // beforeRotation and afterRotation run while the layer is held, so their calls for one layer never overlap
+        PLATFORM,
+        // for many (virtual) threads: the callbacks run outside the layer, so a slow callback holds up only
+        // its own thread and not everybody queued for the layer, and SPIN_THEN_PARK is replaced with BARGING
+        // as spinning would keep the carrier thread busy
+        VIRTUAL
+    }
+
+    // What happens to a rotation event when the subscriber's buffer is full
+    public enum Overflow {
+        // the new event is lost
+        DROP,
+        // the rotation waits until the subscriber takes an event - or until its thread is interrupted, then the event
+        // is lost, the rotation returns and the interrupt comes out of the next operation of the thread
+        BLOCK,
+        // the oldest event in the buffer is lost, so the subscriber gets to the latest ones sooner
+        CONFLATE
+    }
+
+    // Whether the cube writes down its rotations, and when they are on the disk (see Journal)
+    public enum Journaling {
+        OFF,
+        // every rotation forces its record to the disk
+        SYNC,
+        // rotations waiting for the disk at the same time share one force
+        GROUP
+    }
+
+    // Settings that are not needed by most cubes, all of them have sensible defaults
+    public static class Options {
+        private int parallelThreshold = Integer.MAX_VALUE;
+        private ForkJoinPool pool = ForkJoinPool.commonPool();
+        private Scheduler scheduler = Scheduler.FAIR;
+        private LockStrategy lockStrategy = LockStrategy.FAIR;
+        private Executor executor = ForkJoinPool.commonPool();
+        private ThreadMode threadMode = ThreadMode.PLATFORM;
+        private int callbackBuffer = 0;
+        private boolean stateHash = false;
+        private Path journalFile = null;
+        private Journaling journaling = Journaling.OFF;
+        private long batchingWindow = TimeUnit.MICROSECONDS.toNanos(100);
+        private int starvationBound = 64;
+
+        // rotations of cubes with size at least parallelThreshold move their pieces using the pool
+        public Options parallelThreshold(int parallelThreshold) {
+            this.parallelThreshold = parallelThreshold;
+            return this;
+        }
+
+        public Options pool(ForkJoinPool pool) {
+            this.pool = pool;
+            return this;
+        }
+
+        public Options scheduler(Scheduler scheduler) {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        public Options lockStrategy(LockStrategy lockStrategy) {
+            this.lockStrategy = lockStrategy;
+            return this;
+        }
+
+        // runs the operations of rotateAsync() and showAsync()
+        public Options executor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        public Options threadMode(ThreadMode threadMode) {
+            this.threadMode = threadMode;
+            return this;
+        }
+
+        // with callbackBuffer > 0 beforeRotation and afterRotation are not called by the rotating threads but
+        // later, in the same order, by a task on the executor, at most callbackBuffer events can wait for it
+        public Options callbackBuffer(int callbackBuffer) {
+            this.callbackBuffer = callbackBuffer;
+            return this;
+        }
+
+        // keeps the hash of stateHash() up to date with every rotation, for the price of hashing the pieces moved
+        public Options stateHash(boolean stateHash) {
+            this.stateHash = stateHash;
+            return this;
+        }
+
+        // every rotation is appended to the journal file before it is done, so that recover() can bring the cube
+        // back after a crash. A journal can be used by one cube at a time. If the journal cannot be written,
+        // the rotation fails with UncheckedIOException and so does every one after it
+        public Options journal(Path journalFile, Journaling journaling) {
+            this.journalFile = journalFile;
+            this.journaling = journaling;
+            return this;
+        }
+
+        // BATCHING only: how long rotations of the axis being rotated may still join it after other axes
+        // have started waiting, and how many of them at most
+        public Options batchingWindow(long batchingWindow, TimeUnit unit) {
+            this.batchingWindow = unit.toNanos(batchingWindow);
+            return this;
+        }
+
+        public Options starvationBound(int starvationBound) {
+            this.starvationBound = starvationBound;
+            return this;
+        }
+    }
+
+    // the smallest number of pieces of one layer worth moving in a separate task
+    private static final int MIN_GRAIN = 64;
+    // the smallest part of a sequence for applySequence(), in rotations per layer of the cube
+    private static final int MIN_SEQUENCE_GRAIN = 4;
+    // with fewer threads applySequence() rotates in place, compiling the permutation does not pay off
+    private static final int MIN_SEQUENCE_PARALLELISM = 4;
+
     // Data acquired from constructor
     private int size = 0;
     private BiConsumer<Integer, Integer> beforeRotation;
     private BiConsumer<Integer, Integer> afterRotation;
+    private CallbackDispatcher dispatcher;
     private Runnable beforeShowing;
     private Runnable afterShowing;
+    private Options options;
 
     // Data about sides of this cube
     private final ArrayList<Side> sides = new ArrayList<>();
+    private RotationTable rotation_table;
+
+    // Semaphores and variables used for solution's concurrency, each cube has its own set
+    // so that rotations of one cube never wait for rotations of another
+    private AxisGate gate;
+    private final ArrayList<Semaphore> layer_queue = new ArrayList<>();
+
+    // show() does not take part in the protocol above, it reads the pieces optimistically instead
+    // (a sequence lock that allows many writers at once): every rotation increments started before
+    // it moves any piece and finished after it is done, so if no rotation started or was in progress
+    // while we were reading, what we have read is a state the cube has really been in
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong finished = new AtomicLong();
+
+    // how many times show() reads the pieces optimistically before it falls back to the protocol
+    private static final int OPTIMISTIC_TRIES = 64;
+
+    // rotateAsync() and showAsync() only put the operation into async_queue. The operations are carried out
+    // in order by a single task on the executor, which is running as long as async_pending is not 0
+    private static class AsyncOperation {
+        private final int side; // SHOW for show()
+        private final int layer;
+        private final CompletableFuture<String> future = new CompletableFuture<>();
+
+        AsyncOperation(int side, int layer) {
+            this.side = side;
+            this.layer = layer;
+        }
+    }
 
-    // Semaphores and variables used for solution's concurrency
-    private final static Semaphore mutex = new Semaphore(1, true);
-    private final static Semaphore guardian = new Semaphore(0, true);
-    private final static ArrayList<Semaphore> layer_queue = new ArrayList<>();
+    private static final int SHOW = -1;
+    // how many operations the task carries out before it lets other tasks of the executor run
+    private static final int ASYNC_DRAIN_LIMIT = 4096;
 
-    private static int previous_side = -1;
-    private static int rotating_previous_axis = 0;
+    private Journal journal;
+    // checkpoint() only keeps rotations out, two of them would write the same temporary file
+    private final ReentrantLock checkpoint_lock = new ReentrantLock();
 
+    private final CopyOnWriteArrayList<EventSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private volatile boolean closed = false; // after close() new subscribers of rotationEvents() are completed at once
+
+    private final ConcurrentLinkedQueue<AsyncOperation> async_queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger async_pending = new AtomicInteger(0);
 
-    public Cube() {}
 
     public Cube(int size,
                 BiConsumer<Integer, Integer> beforeRotation,
                 BiConsumer<Integer, Integer> afterRotation,
                 Runnable beforeShowing,
                 Runnable afterShowing) {
+        this(size, beforeRotation, afterRotation, beforeShowing, afterShowing, new Options());
+    }
+
+    public Cube(int size,
+                BiConsumer<Integer, Integer> beforeRotation,
+                BiConsumer<Integer, Integer> afterRotation,
+                Runnable beforeShowing,
+                Runnable afterShowing,
+                Options options) {
 
         this.size = size;
-        this.beforeRotation = beforeRotation;
-        this.afterRotation = afterRotation;
+        if (options.callbackBuffer > 0) {
+            this.dispatcher = new CallbackDispatcher(options.callbackBuffer, beforeRotation, afterRotation, options.executor);
+            this.beforeRotation = (side, layer) -> dispatcher.publish(side, layer, CallbackDispatcher.BEFORE);
+            this.afterRotation = (side, layer) -> dispatcher.publish(side, layer, CallbackDispatcher.AFTER);
+        } else {
+            this.dispatcher = null;
+            this.beforeRotation = beforeRotation;
+            this.afterRotation = afterRotation;
+        }
         this.beforeShowing = beforeShowing;
         this.afterShowing = afterShowing;
+        this.options = options;
+
+        LockStrategy lock_strategy = options.lockStrategy;
+        if (options.threadMode == ThreadMode.VIRTUAL && lock_strategy == LockStrategy.SPIN_THEN_PARK) {
+            lock_strategy = LockStrategy.BARGING;
+        }
+
+        this.rotation_table = RotationTable.of(size);
+        this.gate = (options.scheduler == Scheduler.BATCHING ?
+                new BatchingGate(options.batchingWindow, options.starvationBound) : new SemaphoreGate(lock_strategy));
 
         for (int color = 0; color < SIDE_CNT; color++) {
             sides.add(new Side(size, color));
+            if (options.stateHash) {
+                sides.get(color).rehash();
+            }
+        }
+
+        try {
+            this.journal = (options.journaling == Journaling.OFF ? null : new Journal(options.journalFile, options.journaling));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
 
         for (int i = 0; i < size; i++) {
-            layer_queue.add(new Semaphore(1, true)); // could be false, but this way it is a lot easier
-                                                                // to debug and see the ordering of rotations
+            layer_queue.add(lock_strategy.semaphore(1)); // FAIR makes it a lot easier to debug
+                                                         // and see the ordering of rotations
         }
     }
 
     private void perform_rotate(int side, int layer) {
-        beforeRotation.accept(side, layer);
+        perform_rotate(side, layer, layer);
+    }
+
+    private void perform_rotate(int side, int from, int to) {
+        perform_rotate(side, from, to, true);
+    }
+
+    // rotates layers from, from + 1, ..., to of side (from <= to), each of them gets a ticket of its own.
+    // Without events the subscribers of rotationEvents() are not told, the caller has to call missed_events()
+    private void perform_rotate(int side, int from, int to, boolean events) {
+        int count = to - from + 1;
+        long ticket = started.addAndGet(count); // the greatest of them
+        VarHandle.releaseFence(); // no piece can be moved before readers can see that we have started
+
+        if (from == 0) {
+            Side front = sides.get(correlations[side][FRONT]);
+            front.modify(ticket);
+            front.rotate_front_layer(Direction.CLOCKWISE);
+        }
+
+        if (to == size - 1) {
+            Side back = sides.get(correlations[side][BACK]);
+            back.modify(ticket);
+            back.rotate_front_layer(Direction.COUNTER_CLOCKWISE);
+        }
+
+        RotationTable table = rotation_table;
+        Side left = sides.get(table.face(side, LEFT));
+        Side top = sides.get(table.face(side, TOP));
+        Side right = sides.get(table.face(side, RIGHT));
+        Side bottom = sides.get(table.face(side, BOTTOM));
+        left.modify(ticket);
+        top.modify(ticket);
+        right.modify(ticket);
+        bottom.modify(ticket);
+
+        int left_start = left.layer_start(table, side, from, LEFT), left_step = left.layer_step(table, side, LEFT);
+        int top_start = top.layer_start(table, side, from, TOP), top_step = top.layer_step(table, side, TOP);
+        int right_start = right.layer_start(table, side, from, RIGHT), right_step = right.layer_step(table, side, RIGHT);
+        int bottom_start = bottom.layer_start(table, side, from, BOTTOM), bottom_step = bottom.layer_step(table, side, BOTTOM);
+
+        // the next layer starts a fixed distance away from this one
+        int left_next = 0, top_next = 0, right_next = 0, bottom_next = 0;
+        if (count > 1) {
+            left_next = left.layer_start(table, side, from + 1, LEFT) - left_start;
+            top_next = top.layer_start(table, side, from + 1, TOP) - top_start;
+            right_next = right.layer_start(table, side, from + 1, RIGHT) - right_start;
+            bottom_next = bottom.layer_start(table, side, from + 1, BOTTOM) - bottom_start;
+        }
+
+        boolean hashing = options.stateHash;
+        for (int layer = from; layer <= to; layer++) {
+            if (hashing) {
+                hash_layer(left, left_start, left_step, top, top_start, top_step,
+                        right, right_start, right_step, bottom, bottom_start, bottom_step);
+            }
+            if (size >= options.parallelThreshold) {
+                // the rotation still ends before invoke() returns, other cores only help with moving the pieces
+                ForkJoinPool pool = options.pool;
+                int grain = Math.max(MIN_GRAIN, size / (4 * pool.getParallelism()));
+                pool.invoke(new LayerRotation(
+                        left, left_start, left_step,
+                        top, top_start, top_step,
+                        right, right_start, right_step,
+                        bottom, bottom_start, bottom_step,
+                        0, size, grain));
+            } else {
+                // no allocations and no branches here, every piece of the layer is reached by its start index and a fixed step
+                Side.rotate_layer_pieces(
+                        left, left_start, left_step,
+                        top, top_start, top_step,
+                        right, right_start, right_step,
+                        bottom, bottom_start, bottom_step,
+                        size);
+            }
+            if (hashing) {
+                hash_layer(left, left_start, left_step, top, top_start, top_step,
+                        right, right_start, right_step, bottom, bottom_start, bottom_step);
+            }
+            left_start += left_next;
+            top_start += top_next;
+            right_start += right_next;
+            bottom_start += bottom_next;
+        }
+
+        finished.addAndGet(count);
+
+        if (events && !subscriptions.isEmpty()) {
+            for (EventSubscription subscription : subscriptions) {
+                for (int layer = from; layer <= to; layer++) {
+                    subscription.offer(side, layer, ticket - to + layer);
+                }
+            }
+        }
+    }
+
+    private void hash_layer(Side left, int left_start, int left_step,
+                            Side top, int top_start, int top_step,
+                            Side right, int right_start, int right_step,
+                            Side bottom, int bottom_start, int bottom_step) {
+        left.hash_pieces(left_start, left_step, size);
+        top.hash_pieces(top_start, top_step, size);
+        right.hash_pieces(right_start, right_step, size);
+        bottom.hash_pieces(bottom_start, bottom_step, size);
+    }
 
-        if (layer == 0) {
-            sides.get(correlations[side][FRONT]).rotate_front_layer(Direction.CLOCKWISE);
+    // the hash of the cube from the hashes of its faces, a face's place decides how its hash is turned
+    private static long combine(long hash, int face, long face_hash) {
+        return hash ^ Long.rotateLeft(face_hash, 11 * face);
+    }
+
+    private long hash_faces() {
+        long hash = 0;
+        for (int face = 0; face < SIDE_CNT; face++) {
+            hash = combine(hash, face, sides.get(face).hash());
         }
+        return hash;
+    }
 
-        if (layer == size - 1) {
-            sides.get(correlations[side][BACK]).rotate_front_layer(Direction.COUNTER_CLOCKWISE);
+    // one digit per piece, face after face, faces not rotated since they were last rendered are just copied
+    private void render(ByteBuffer target, int position, long stamp) {
+        int face_size = size * size;
+        for (int face = 0; face < SIDE_CNT; face++) {
+            sides.get(face).render(target, position + face * face_size, stamp);
         }
+    }
 
-        ArrayList<Piece> left_pieces = sides.get(correlations[side][LEFT]).get_layer_pieces(side, layer, LEFT);
-        ArrayList<Piece> top_pieces = sides.get(correlations[side][TOP]).get_layer_pieces(side, layer, TOP);
-        ArrayList<Piece> right_pieces = sides.get(correlations[side][RIGHT]).get_layer_pieces(side, layer, RIGHT);
-        ArrayList<Piece> bottom_pieces = sides.get(correlations[side][BOTTOM]).get_layer_pieces(side, layer, BOTTOM);
+    // returns false if some rotation may have moved the pieces while they were being read
+    private boolean optimistic_show(ByteBuffer target, int position) {
+        long finished_before = finished.get();
+        long started_before = started.get();
+        if (started_before != finished_before) {
+            return false; // a rotation is in progress
+        }
 
-        sides.get(side).rotate_layer_pieces(left_pieces, top_pieces, right_pieces, bottom_pieces);
+        render(target, position, started_before);
 
-        afterRotation.accept(side, layer);
+        VarHandle.acquireFence(); // all pieces have been read before we check whether anything has changed
+        return started.get() == started_before;
     }
 
-    private String perform_show() {
-        beforeShowing.run();
+    private void perform_show(ByteBuffer target) throws InterruptedException {
+        int position = target.position();
 
-        String s = "";
-        for (Side side : sides) {
-            s = s.concat(side.get_side());
+        boolean shown = false;
+        for (int i = 0; i < OPTIMISTIC_TRIES && !shown; i++) {
+            shown = optimistic_show(target, position);
+            if (!shown) {
+                Thread.onSpinWait();
+            }
+        }
+        if (!shown) {
+            locked_show(target, position); // the cube is rotating all the time, stop the rotations for a moment
         }
 
-        afterShowing.run();
-        return s;
+        target.position(position + SIDE_CNT * size * size);
+    }
+
+    // rotations of side and of the opposite side share the axis and the layers
+    private static boolean same_axis(int side, int other_side) {
+        return side == other_side || side == correlations[other_side][BACK];
+    }
+
+    // k-th layer of a side is the (size - k - 1)-st layer of the opposite side, so they share the semaphore
+    private int layer_index(int side, int layer) {
+        return (side < correlations[side][BACK] ? layer : size - layer - 1);
+    }
+
+    // 0 for top and bottom, 1 for left and right, 2 for front and back
+    private static int axis(int side) {
+        return Math.min(side, correlations[side][BACK]);
+    }
+
+    // joins the group of rotations of the side's axis, waiting until the group working now leaves
+    private void enter_axis(int side) throws InterruptedException {
+        gate.enter(axis(side));
+    }
+
+    private void leave_axis() {
+        gate.leave();
+    }
+
+    // with a journal the rotation is written down before any piece moves, if that fails nothing moves
+    private void journal_rotation(int side, int from, int to) {
+        if (journal != null) {
+            for (int layer = from; layer <= to; layer++) {
+                journal.append(Journal.ROTATE, side, layer);
+            }
+        }
+    }
+
+    private void rotate_layer(int side, int layer) throws InterruptedException {
+        Semaphore layer_permit = layer_queue.get(layer_index(side, layer));
+        if (options.threadMode == ThreadMode.VIRTUAL) {
+            beforeRotation.accept(side, layer);
+            layer_permit.acquire();
+            try {
+                journal_rotation(side, layer, layer);
+                perform_rotate(side, layer);
+            } finally {
+                layer_permit.release();
+            }
+            afterRotation.accept(side, layer);
+        } else {
+            layer_permit.acquire();
+            try {
+                beforeRotation.accept(side, layer);
+                journal_rotation(side, layer, layer);
+                perform_rotate(side, layer);
+                afterRotation.accept(side, layer);
+            } finally {
+                layer_permit.release();
+            }
+        }
     }
 
     public void rotate(int side, int layer) throws InterruptedException {
+        enter_axis(side);
         try {
-            mutex.acquire();
-            if (previous_side != side && previous_side != correlations[side][BACK]) {
-                try {
-                    guardian.acquire(rotating_previous_axis);
-                    previous_side = side;
-                    rotating_previous_axis = 0;
-                } catch (InterruptedException e) {
-                    throw new InterruptedException();
+            rotate_layer(side, layer);
+        } finally {
+            leave_axis();
+        }
+    }
+
+    // rotates layers fromLayer, fromLayer + 1, ..., toLayer of side all at once: nobody sees the cube
+    // with only some of them rotated. The callbacks come for every layer, in the order of layers
+    public void rotateRange(int side, int fromLayer, int toLayer) throws InterruptedException {
+        if (side < 0 || side >= SIDE_CNT || fromLayer < 0 || fromLayer > toLayer || toLayer >= size) {
+            throw new IllegalArgumentException("no such range of layers");
+        }
+
+        // the semaphores of the layers are taken in the order of their numbers, so two rotations never wait
+        // for each other
+        int first = Math.min(layer_index(side, fromLayer), layer_index(side, toLayer));
+        int last = Math.max(layer_index(side, fromLayer), layer_index(side, toLayer));
+        boolean callbacks_outside = (options.threadMode == ThreadMode.VIRTUAL);
+
+        enter_axis(side);
+        int taken = first;
+        try {
+            if (callbacks_outside) {
+                for (int layer = fromLayer; layer <= toLayer; layer++) {
+                    beforeRotation.accept(side, layer);
                 }
             }
-            rotating_previous_axis++;
-        } catch (InterruptedException e) {
-            throw new InterruptedException();
+            for (; taken <= last; taken++) {
+                layer_queue.get(taken).acquire();
+            }
+            if (!callbacks_outside) {
+                for (int layer = fromLayer; layer <= toLayer; layer++) {
+                    beforeRotation.accept(side, layer);
+                }
+            }
+            journal_rotation(side, fromLayer, toLayer);
+            perform_rotate(side, fromLayer, toLayer);
+            if (!callbacks_outside) {
+                for (int layer = fromLayer; layer <= toLayer; layer++) {
+                    afterRotation.accept(side, layer);
+                }
+            }
+        } finally {
+            for (int index = first; index < taken; index++) {
+                layer_queue.get(index).release();
+            }
+            leave_axis();
+        }
+        if (callbacks_outside) {
+            for (int layer = fromLayer; layer <= toLayer; layer++) {
+                afterRotation.accept(side, layer);
+            }
+        }
+    }
+
+    private boolean is_layer(int side, int layer) {
+        return side >= 0 && side < SIDE_CNT && layer >= 0 && layer < size;
+    }
+
+    // the whole sequence is checked before any of it is done, so a wrong rotation does not leave it half done
+    private void check_sequence(int[] sides, int[] layers) {
+        if (sides.length != layers.length) {
+            throw new IllegalArgumentException("sides and layers differ in length");
+        }
+        for (int i = 0; i < sides.length; i++) {
+            if (!is_layer(sides[i], layers[i])) {
+                throw new IllegalArgumentException("no such layer: side " + sides[i] + ", layer " + layers[i]);
+            }
+        }
+    }
+
+    // the same as rotate(sides[i], layers[i]) for i = 0, 1, ..., but every run of rotations of one axis
+    // joins the group of that axis only once
+    public void rotateAll(int[] sides, int[] layers) throws InterruptedException {
+        check_sequence(sides, layers);
+        rotate_runs(sides, layers);
+    }
+
+    // rotateAll() of a sequence that has been checked
+    private void rotate_runs(int[] sides, int[] layers) throws InterruptedException {
+        int run_start = 0;
+        while (run_start < sides.length) {
+            int run_end = run_start + 1;
+            while (run_end < sides.length && same_axis(sides[run_end], sides[run_start])) {
+                run_end++;
+            }
+
+            enter_axis(sides[run_start]);
+            try {
+                for (int i = run_start; i < run_end; i++) {
+                    rotate_layer(sides[i], layers[i]);
+                }
+            } finally {
+                leave_axis();
+            }
+            run_start = run_end;
+        }
+    }
+
+    // the whole cube turned, as if all layers of side were rotated, but in constant time.
+    // It is not a rotation, so there are no callbacks and no rotation event, see missed_events()
+    private void perform_reorient(int side) {
+        long ticket = started.incrementAndGet();
+        VarHandle.releaseFence();
+
+        Side[] before = sides.toArray(new Side[0]);
+        for (int face = 0; face < SIDE_CNT; face++) {
+            Side moved = before[reoriented_from[side][face]];
+            moved.modify(ticket);
+            for (int q = 0; q < reoriented_spins[side][face]; q++) {
+                moved.rotate_front_layer(Direction.CLOCKWISE);
+            }
+            sides.set(face, moved);
+        }
+
+        finished.incrementAndGet();
+    }
+
+    // turns the whole cube clockwise or counter-clockwise as seen from side, leaves it as rotating every layer
+    // of side would, only without moving any piece. Waits until nobody else uses the cube
+    public void reorient(int side, Direction direction) throws InterruptedException {
+        gate.enter(AxisGate.WHOLE);
+        try {
+            int clockwise_side = (direction == Direction.CLOCKWISE ? side : correlations[side][BACK]);
+            if (journal != null) {
+                journal.append(Journal.REORIENT, clockwise_side, 0);
+            }
+            perform_reorient(clockwise_side);
+            missed_events();
         } finally {
-            mutex.release();
+            gate.leave();
+        }
+    }
+
+    // for whoever has changed the whole cube without rotations: the subscribers of rotationEvents() cannot
+    // replay that, so their next event says they have missed one and should take show() again
+    private void missed_events() {
+        for (EventSubscription subscription : subscriptions) {
+            subscription.miss();
+        }
+    }
+
+    // how many bytes snapshot() writes
+    public int snapshotSize() {
+        return Snapshot.length(size);
+    }
+
+    // writes the state of the cube in the binary form of Snapshot at the position of target and moves it
+    // past it. Waits like show() does, so the state is one the cube has really been in
+    public void snapshot(ByteBuffer target) throws InterruptedException {
+        if (target.remaining() < snapshotSize()) {
+            throw new BufferOverflowException();
         }
+
+        byte[] colors = new byte[SIDE_CNT * size * size];
+        gate.enter(AxisGate.SHOW);
         try {
-            layer_queue.get(previous_side == side ? layer : size - layer - 1).acquire();
-            perform_rotate(side, layer);
-            layer_queue.get(previous_side == side ? layer : size - layer - 1).release();
-        } catch (InterruptedException e) {
-            throw new InterruptedException();
+            for (int face = 0; face < SIDE_CNT; face++) {
+                sides.get(face).colors(colors, face * size * size);
+            }
         } finally {
-            guardian.release();
+            gate.leave();
         }
+        Snapshot.write(target, size, last_journaled(), colors);
     }
 
-    public String show() throws InterruptedException {
+    private long last_journaled() {
+        return (journal == null ? 0 : journal.last_sequence());
+    }
+
+    public void snapshot(Path file) throws IOException, InterruptedException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, snapshotSize());
+            snapshot(mapped);
+            mapped.force();
+        }
+    }
+
+    // puts the cube into the state read from source, written by snapshot() of a cube of the same size.
+    // Waits until nobody else uses the cube, it is not a rotation though, so there are no callbacks
+    // and no rotation event. With a journal the state goes into the journal first, recover() could not get to it
+    // from the rotations
+    public void restore(ByteBuffer source) throws InterruptedException {
+        byte[] colors = Snapshot.read(source, size);
+
+        gate.enter(AxisGate.WHOLE);
         try {
-            mutex.acquire();
-            if (previous_side != -1) {
-                try {
-                    guardian.acquire(rotating_previous_axis);
-                    previous_side = -1;
-                    rotating_previous_axis = 0;
-                } catch (InterruptedException e) {
-                    throw new InterruptedException();
+            if (journal != null) {
+                ByteBuffer written = ByteBuffer.allocate(snapshotSize());
+                Snapshot.write(written, size, 0, colors);
+                journal.append_restore(written.array());
+            }
+            set_colors(colors);
+            missed_events();
+        } finally {
+            gate.leave();
+        }
+    }
+
+    // only for whoever holds the whole cube
+    private void set_colors(byte[] colors) {
+        long ticket = started.incrementAndGet();
+        VarHandle.releaseFence();
+        for (int face = 0; face < SIDE_CNT; face++) {
+            Side side = sides.get(face);
+            side.modify(ticket);
+            side.set_colors(colors, face * size * size);
+            if (options.stateHash) {
+                side.rehash();
+            }
+        }
+        finished.incrementAndGet();
+    }
+
+    public void restore(Path file) throws IOException, InterruptedException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            restore(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    // with Options.journal: writes the state of the cube to snapshot (through a temporary file, so that
+    // a crash leaves the old snapshot or the new one) and empties the journal, which from now on only has
+    // to keep what happens after it. Nothing rotates meanwhile
+    public void checkpoint(Path snapshot) throws IOException, InterruptedException {
+        byte[] colors = new byte[SIDE_CNT * size * size];
+        ByteBuffer written = ByteBuffer.allocate(snapshotSize());
+        Path temporary = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+        checkpoint_lock.lockInterruptibly();
+        try {
+            gate.enter(AxisGate.SHOW);
+            try {
+                for (int face = 0; face < SIDE_CNT; face++) {
+                    sides.get(face).colors(colors, face * size * size);
+                }
+                Snapshot.write(written, size, last_journaled(), colors);
+                written.flip();
+                try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    while (written.hasRemaining()) {
+                        channel.write(written);
+                    }
+                    channel.force(true);
+                }
+                Files.move(temporary, snapshot, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                if (journal != null) {
+                    journal.truncate();
+                }
+            } finally {
+                gate.leave();
+            }
+        } finally {
+            checkpoint_lock.unlock();
+        }
+    }
+
+    // with Options.journal, before anything else: puts the cube into the state of snapshot (if there is one)
+    // and does again what the journal has written down after it, without callbacks.
+    // Returns how many records of the journal have been done again
+    public long recover(Path snapshot) throws IOException, InterruptedException {
+        if (journal == null) {
+            throw new IllegalStateException("the cube has no journal");
+        }
+
+        byte[] colors = null;
+        long after = 0;
+        if (Files.exists(snapshot)) {
+            try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+                ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                after = Snapshot.sequence(mapped);
+                colors = Snapshot.read(mapped, size);
+            }
+        }
+
+        gate.enter(AxisGate.WHOLE);
+        try {
+            if (colors != null) {
+                set_colors(colors);
+            }
+            long replayed = journal.replay(after, (kind, side, layer, restored) -> {
+                if (kind == Journal.ROTATE) {
+                    perform_rotate(side, layer);
+                } else if (kind == Journal.REORIENT) {
+                    perform_reorient(side);
+                } else {
+                    set_colors(Snapshot.read(restored, size));
                 }
+            });
+            journal.continue_after(after);
+            return replayed;
+        } finally {
+            gate.leave();
+        }
+    }
+
+    // completes the subscriptions of rotationEvents() (after the events they already have in their buffers)
+    // and closes the journal, if the cube has one - rotating the cube after that fails
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        for (EventSubscription subscription : subscriptions) {
+            subscription.complete();
+        }
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    // leaves the cube as rotateAll() would, but first drops what cancels out: runs of one axis become
+    // at most a few turns per layer, so the callbacks come only for the rotations that are left.
+    // Returns how many rotations have been saved
+    public int rotateAllOptimized(int[] sides, int[] layers) throws InterruptedException {
+        check_sequence(sides, layers);
+        if (!has_axis_runs(sides)) {
+            // every run of one axis is a single rotation, which cannot cancel out with anything
+            rotate_runs(sides, layers);
+            return 0;
+        }
+
+        int[] normal_sides = sides.clone();
+        int[] normal_layers = layers.clone();
+        int length = MoveNormalizer.normalize(size, normal_sides, normal_layers, sides.length);
+        rotate_runs(Arrays.copyOf(normal_sides, length), Arrays.copyOf(normal_layers, length));
+        return sides.length - length;
+    }
+
+    // whether some two rotations next to each other share the axis, much cheaper than normalizing
+    private static boolean has_axis_runs(int[] sides) {
+        for (int i = 1; i < sides.length; i++) {
+            if (same_axis(sides[i], sides[i - 1])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // leaves the cube as rotateAll() would, for long sequences nobody is watching: the whole sequence is carried out
+    // while nobody else can use the cube - like restore(), it is not a rotation, so there are no callbacks
+    // and no rotation events, the whole sequence counts as one missed event. Compiling the rotations into
+    // one permutation of the pieces (see MovePermutation) costs more than rotating in place, 1 to 3.5 times
+    // as much on one core for cubes of size 32 to 512, so it is done only when the pool of Options has at least
+    // MIN_SEQUENCE_PARALLELISM threads to share the parts of the sequence among and there are at least two parts;
+    // otherwise the rotations are carried out one by one in place
+    public void applySequence(int[] sides, int[] layers) throws InterruptedException {
+        check_sequence(sides, layers);
+        if (sides.length == 0) {
+            return;
+        }
+
+        // a part of the sequence must have a few rotations per layer, or composing the permutations of the parts
+        // costs more than carrying them out
+        ForkJoinPool pool = options.pool;
+        int grain = Math.max(MIN_SEQUENCE_GRAIN * size, sides.length / (4 * pool.getParallelism()) + 1);
+        if (pool.getParallelism() < MIN_SEQUENCE_PARALLELISM || sides.length < 2 * grain) {
+            apply_in_place(sides, layers);
+            return;
+        }
+        int[] permutation = pool.invoke(new MovePermutation(rotation_table, sides.clone(), layers.clone(),
+                0, sides.length, grain));
+
+        byte[] colors = new byte[SIDE_CNT * size * size];
+        byte[] moved = new byte[colors.length];
+        gate.enter(AxisGate.WHOLE);
+        try {
+            for (int face = 0; face < SIDE_CNT; face++) {
+                this.sides.get(face).colors(colors, face * size * size);
+            }
+            for (int place = 0; place < moved.length; place++) {
+                moved[place] = colors[permutation[place]];
+            }
+            for (int i = 0; i < sides.length; i++) {
+                journal_rotation(sides[i], layers[i], layers[i]);
+            }
+            set_colors(moved);
+            missed_events();
+        } finally {
+            gate.leave();
+        }
+    }
+
+    private void apply_in_place(int[] sides, int[] layers) throws InterruptedException {
+        gate.enter(AxisGate.WHOLE);
+        try {
+            for (int i = 0; i < sides.length; i++) {
+                journal_rotation(sides[i], layers[i], layers[i]);
+                perform_rotate(sides[i], layers[i], layers[i], false);
             }
-            rotating_previous_axis++;
+            missed_events();
+        } finally {
+            gate.leave();
+        }
+    }
+
+    // the rotation is carried out by the cube, the future is completed after it (with the exception if it failed)
+    public CompletableFuture<Void> rotateAsync(int side, int layer) {
+        if (!is_layer(side, layer)) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("no such layer"));
+        }
+        AsyncOperation operation = new AsyncOperation(side, layer);
+        submit_async(operation);
+        return operation.future.thenApply(result -> null);
+    }
+
+    public CompletableFuture<String> showAsync() {
+        AsyncOperation operation = new AsyncOperation(SHOW, 0);
+        submit_async(operation);
+        return operation.future;
+    }
+
+    private void submit_async(AsyncOperation operation) {
+        async_queue.add(operation);
+        if (async_pending.getAndIncrement() == 0) {
+            options.executor.execute(this::drain_async);
+        }
+    }
+
+    private void drain_async() {
+        int processed = 0;
+        int batch;
+        do {
+            // a submitter adds its operation to the queue before it counts it, so the queue may already hold
+            // operations nobody has counted yet - taking no more than have been counted keeps async_pending
+            // from going below 0 (the operation taken instead of them is counted when they come)
+            batch = run_async_batch(async_pending.get());
+            processed += batch;
+            if (processed >= ASYNC_DRAIN_LIMIT && async_pending.get() != batch) {
+                async_pending.addAndGet(-batch);
+                options.executor.execute(this::drain_async); // there is more to do, but let others run too
+                return;
+            }
+        } while (async_pending.addAndGet(-batch) != 0);
+    }
+
+    // carries out the next show(), or the next run of rotations of one axis joining the axis only once,
+    // taking at most limit operations. Returns how many operations it has taken from the queue
+    private int run_async_batch(int limit) {
+        AsyncOperation first = (limit > 0 ? async_queue.poll() : null);
+        if (first == null) {
+            return 0;
+        }
+        if (first.side == SHOW) {
+            try {
+                first.future.complete(show());
+            } catch (Throwable e) {
+                first.future.completeExceptionally(e);
+            }
+            return 1;
+        }
+
+        ArrayList<AsyncOperation> run = new ArrayList<>();
+        run.add(first);
+        AsyncOperation next = async_queue.peek();
+        while (next != null && next.side != SHOW && same_axis(next.side, first.side)
+                && run.size() < Math.min(limit, ASYNC_DRAIN_LIMIT)) {
+            run.add(async_queue.poll());
+            next = async_queue.peek();
+        }
+
+        try {
+            enter_axis(first.side);
         } catch (InterruptedException e) {
-            throw new InterruptedException();
+            for (AsyncOperation operation : run) {
+                operation.future.completeExceptionally(e);
+            }
+            return run.size();
+        }
+        try {
+            for (AsyncOperation operation : run) {
+                // a rotation that fails (in a callback or in the journal) fails alone, the rest are still carried out
+                try {
+                    rotate_layer(operation.side, operation.layer);
+                    operation.future.complete(null);
+                } catch (Throwable e) {
+                    operation.future.completeExceptionally(e);
+                }
+            }
+        } finally {
+            leave_axis();
+        }
+        return run.size();
+    }
+
+    // every subscriber gets the rotations finished after it has subscribed, in a buffer of its own
+    // holding up to buffer events, on the threads of Options.executor
+    public Flow.Publisher<RotationEvent> rotationEvents(Overflow overflow, int buffer) {
+        if (buffer <= 0) {
+            throw new IllegalArgumentException("buffer must be positive");
+        }
+        return subscriber -> {
+            EventSubscription[] subscription = new EventSubscription[1];
+            subscription[0] = new EventSubscription(subscriber, overflow, buffer, options.executor,
+                    () -> subscriptions.remove(subscription[0]));
+            subscriptions.add(subscription[0]);
+            subscriber.onSubscribe(subscription[0]);
+            if (closed) {
+                subscription[0].complete(); // close() may not have seen it
+            }
+        };
+    }
+
+    // 64-bit hash of the colors of all pieces, the same as hashOf(size, show()) - cubes in the same state
+    // have the same hash. Without Options.stateHash it is computed from the pieces read like show() reads them,
+    // only without the callbacks - asking for the hash is not showing the cube
+    public long stateHash() throws InterruptedException {
+        if (!options.stateHash) {
+            byte[] shown = new byte[SIDE_CNT * size * size];
+            perform_show(ByteBuffer.wrap(shown));
+            return hashOf(size, new Digits(shown, 0, shown.length));
+        }
+
+        for (int i = 0; i < OPTIMISTIC_TRIES; i++) {
+            long finished_before = finished.get();
+            long started_before = started.get();
+            if (started_before == finished_before) {
+                long hash = hash_faces();
+                VarHandle.acquireFence();
+                if (started.get() == started_before) {
+                    return hash;
+                }
+            }
+            Thread.onSpinWait();
+        }
+
+        gate.enter(AxisGate.SHOW);
+        try {
+            return hash_faces();
+        } finally {
+            gate.leave();
+        }
+    }
+
+    // the hash of a cube of the given size that show() has returned shown for
+    public static long hashOf(int size, CharSequence shown) {
+        if (shown.length() != SIDE_CNT * size * size) {
+            throw new IllegalArgumentException("not a cube of size " + size);
+        }
+        long[] place_keys = Side.place_keys(size);
+        long hash = 0;
+        int position = 0;
+        for (int face = 0; face < SIDE_CNT; face++) {
+            long face_hash = 0;
+            for (int row = 0; row < size; row++) {
+                for (int col = 0; col < size; col++) {
+                    face_hash ^= Side.key(place_keys, size, shown.charAt(position++) - '0', row, col);
+                }
+            }
+            hash = combine(hash, face, face_hash);
+        }
+        return hash;
+    }
+
+    // waits until the callbacks of every rotation finished before the call have been called,
+    // needed only with Options.callbackBuffer
+    public void awaitCallbacks() throws InterruptedException {
+        if (dispatcher != null) {
+            dispatcher.await();
+        }
+    }
+
+    public String show() throws InterruptedException {
+        byte[] result = new byte[SIDE_CNT * size * size];
+        show(ByteBuffer.wrap(result));
+        return new String(result, StandardCharsets.ISO_8859_1);
+    }
+
+    // the same as show(), but the 6 * size * size digits are written at the position of target, which is then
+    // moved past them - a caller that keeps reusing its buffer does not allocate anything
+    public void show(ByteBuffer target) throws InterruptedException {
+        if (target.remaining() < SIDE_CNT * size * size) {
+            throw new BufferOverflowException();
+        }
+
+        beforeShowing.run();
+        perform_show(target);
+        afterShowing.run();
+    }
+
+    public void show(Appendable target) throws InterruptedException, IOException {
+        byte[] result = new byte[SIDE_CNT * size * size];
+        show(ByteBuffer.wrap(result));
+        target.append(new Digits(result, 0, result.length));
+    }
+
+    // ASCII digits seen as characters, so that they can be appended without making a String first
+    private static class Digits implements CharSequence {
+        private final byte[] digits;
+        private final int start;
+        private final int end;
+
+        Digits(byte[] digits, int start, int end) {
+            this.digits = digits;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) digits[start + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            return new Digits(digits, start + from, start + to);
+        }
+
+        @Override
+        public String toString() {
+            return new String(digits, start, end - start, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private void locked_show(ByteBuffer target, int position) throws InterruptedException {
+        gate.enter(AxisGate.SHOW);
+        try {
+            render(target, position, started.get());
         } finally {
-            mutex.release();
+            gate.leave();
         }
-        String result = perform_show();
-        guardian.release();
-        return result;
     }
 
 }
\ No newline at end of file
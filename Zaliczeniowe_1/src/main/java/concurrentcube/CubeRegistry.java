@@ -0,0 +1,205 @@
+package concurrentcube;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Many cubes of one size, most of them idle. Every cube has a slot of its own in an arena outside the heap,
+// where it is kept in the binary form of Snapshot while it is cold. A cube that is being used is hot:
+// it is made a Cube again and kept on the heap, the least recently used hot cubes go back to their slots
+// when there are more than hotCapacity of them. Cubes are split into SHARDS by their ids, each with its own
+// lock and its own part of the hot cubes, so that using cubes of different shards does not contend.
+public class CubeRegistry {
+
+    private static final int SHARDS = 16;
+    private static final int MAX_CHUNK_BITS = 14;
+    private static final int MAX_CHUNK = 1 << 30;
+
+    private static class Hot {
+        private final Cube cube;
+        private int pins = 0; // a pinned cube is not sent back to its slot
+
+        Hot(Cube cube) {
+            this.cube = cube;
+        }
+    }
+
+    private static class Shard {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final LinkedHashMap<Long, Hot> hot = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    private final int size;
+    private final int slot_length;
+    private final int chunk_bits; // a buffer of the arena has 2^chunk_bits slots
+    private final int hot_per_shard;
+    private final byte[] solved; // the slot of a new cube
+
+    private final Shard[] shards = new Shard[SHARDS];
+    private final AtomicLong next_id = new AtomicLong(0);
+    private final ReentrantLock arena_lock = new ReentrantLock();
+    private volatile ByteBuffer[] arena = new ByteBuffer[0];
+
+    public CubeRegistry(int size, int hotCapacity) {
+        this.size = size;
+        this.slot_length = Snapshot.length(size);
+        this.chunk_bits = Math.min(MAX_CHUNK_BITS, 31 - Integer.numberOfLeadingZeros(Math.max(1, MAX_CHUNK / slot_length)));
+        this.hot_per_shard = Math.max(1, hotCapacity / SHARDS);
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard();
+        }
+
+        ByteBuffer solved_snapshot = ByteBuffer.allocate(slot_length);
+        try {
+            new_cube().snapshot(solved_snapshot);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException("interrupted while taking a snapshot nobody else could use", e);
+        }
+        this.solved = solved_snapshot.array();
+    }
+
+    private Cube new_cube() {
+        return new Cube(size, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+    }
+
+    private Shard shard(long id) {
+        return shards[(int) (id & (SHARDS - 1))];
+    }
+
+    // the slot of the cube, as a buffer of its own
+    private ByteBuffer slot(long id) {
+        ByteBuffer chunk = arena[(int) (id >>> chunk_bits)];
+        int offset = (int) (id & ((1 << chunk_bits) - 1)) * slot_length;
+        return chunk.duplicate().position(offset).limit(offset + slot_length);
+    }
+
+    // a new solved cube, cold until it is used
+    public long create() {
+        long id = next_id.getAndIncrement();
+        int chunk = (int) (id >>> chunk_bits);
+        if (chunk >= arena.length) {
+            arena_lock.lock();
+            try {
+                if (chunk >= arena.length) {
+                    // the creator of an id in an earlier chunk may not have got here yet, its chunk is made too
+                    ByteBuffer[] grown = Arrays.copyOf(arena, chunk + 1);
+                    for (int missing = arena.length; missing <= chunk; missing++) {
+                        grown[missing] = ByteBuffer.allocateDirect(slot_length << chunk_bits);
+                    }
+                    arena = grown;
+                }
+            } finally {
+                arena_lock.unlock();
+            }
+        }
+        slot(id).put(solved);
+        return id;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long cubes() {
+        return next_id.get();
+    }
+
+    public int hotCubes() {
+        int hot = 0;
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                hot += shard.hot.size();
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return hot;
+    }
+
+    // bytes of the arena outside the heap
+    public long arenaBytes() {
+        return (long) arena.length * (slot_length << chunk_bits);
+    }
+
+    // makes the cube hot if it is not and keeps it so until unpin(id) - the Cube returned must not be used
+    // after that, as it may have gone back to its slot
+    public Cube pin(long id) throws InterruptedException {
+        if (id < 0 || id >= next_id.get()) {
+            throw new IllegalArgumentException("no cube " + id);
+        }
+        Shard shard = shard(id);
+        shard.lock.lock();
+        try {
+            Hot hot = shard.hot.get(id);
+            if (hot == null) {
+                hot = new Hot(new_cube());
+                hot.cube.restore(slot(id));
+                shard.hot.put(id, hot);
+                hot.pins++; // before evict(), which would otherwise send it straight back
+                try {
+                    evict(shard);
+                } catch (InterruptedException e) {
+                    // nobody has got the cube yet and it is the same as its slot, so it is simply forgotten,
+                    // otherwise it would stay pinned with nobody to unpin it
+                    shard.hot.remove(id);
+                    throw e;
+                }
+            } else {
+                hot.pins++;
+            }
+            return hot.cube;
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    public void unpin(long id) throws InterruptedException {
+        Shard shard = shard(id);
+        shard.lock.lock();
+        try {
+            Hot hot = shard.hot.get(id);
+            if (hot == null || hot.pins == 0) {
+                throw new IllegalStateException("cube " + id + " is not pinned");
+            }
+            hot.pins--;
+            evict(shard);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    // sends the least recently used cubes that are not pinned back to their slots, called with the lock held
+    private void evict(Shard shard) throws InterruptedException {
+        Iterator<Map.Entry<Long, Hot>> eldest = shard.hot.entrySet().iterator();
+        while (shard.hot.size() > hot_per_shard && eldest.hasNext()) {
+            Map.Entry<Long, Hot> entry = eldest.next();
+            if (entry.getValue().pins == 0) {
+                entry.getValue().cube.snapshot(slot(entry.getKey()));
+                eldest.remove();
+            }
+        }
+    }
+
+    public void rotate(long id, int side, int layer) throws InterruptedException {
+        Cube cube = pin(id);
+        try {
+            cube.rotate(side, layer);
+        } finally {
+            unpin(id);
+        }
+    }
+
+    public String show(long id) throws InterruptedException {
+        Cube cube = pin(id);
+        try {
+            return cube.show();
+        } finally {
+            unpin(id);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package concurrentcube;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// one subscriber of the rotation events. The rotating threads put the events into a buffer of its own,
+// a task on the executor passes them on as far as the subscriber has requested them. What happens
+// when the buffer is full is up to the subscriber's Overflow, only BLOCK ever slows the rotations down.
+class EventSubscription implements Flow.Subscription {
+
+    private final Flow.Subscriber<? super RotationEvent> subscriber;
+    private final Cube.Overflow overflow;
+    private final int capacity;
+    private final Executor executor;
+    private final Runnable on_cancel;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition not_full = lock.newCondition();
+    private final ArrayDeque<RotationEvent> buffer = new ArrayDeque<>();
+    private long missed = 0; // lost since the last event put into the buffer
+
+    private final AtomicLong requested = new AtomicLong(0);
+    private final AtomicInteger work = new AtomicInteger(0); // the task runs while it is not 0
+    private volatile boolean cancelled = false;
+    // the end of the subscription is signalled by the task too, after what it has passed on so far:
+    // onError for a wrong request, onComplete when the cube is closed and the buffer is empty
+    private volatile Throwable error = null;
+    private volatile boolean completed = false;
+    private boolean terminated = false; // only the task uses it
+
+    public EventSubscription(Flow.Subscriber<? super RotationEvent> subscriber,
+                             Cube.Overflow overflow,
+                             int capacity,
+                             Executor executor,
+                             Runnable on_cancel) {
+        this.subscriber = subscriber;
+        this.overflow = overflow;
+        this.capacity = capacity;
+        this.executor = executor;
+        this.on_cancel = on_cancel;
+    }
+
+    // called by the rotating thread, with BLOCK it waits for a free place (or for the subscription to end,
+    // or for the thread to be interrupted). The rotation has already been done then and cannot be given up,
+    // so on an interrupt the event is lost instead and the interrupt is left for the next wait of the thread
+    public void offer(int side, int layer, long sequence) {
+        lock.lock();
+        try {
+            while (buffer.size() >= capacity && !cancelled && !completed) {
+                if (overflow == Cube.Overflow.DROP) {
+                    missed++;
+                    return;
+                } else if (overflow == Cube.Overflow.CONFLATE) {
+                    // the oldest goes, what it has missed and itself are counted by the one after it
+                    RotationEvent oldest = buffer.pollFirst();
+                    RotationEvent next = buffer.pollFirst();
+                    if (next == null) {
+                        missed += oldest.missed() + 1;
+                    } else {
+                        buffer.addFirst(next.with_missed(oldest.missed() + 1));
+                    }
+                } else {
+                    try {
+                        not_full.await();
+                    } catch (InterruptedException e) {
+                        missed++;
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+            if (cancelled || completed) {
+                return;
+            }
+            buffer.addLast(new RotationEvent(side, layer, sequence, missed));
+            missed = 0;
+        } finally {
+            lock.unlock();
+        }
+        schedule();
+    }
+
+    // the cube has changed in a way no event tells of, the next event says that one more has been missed
+    public void miss() {
+        lock.lock();
+        try {
+            missed++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void schedule() {
+        if (work.getAndIncrement() == 0) {
+            executor.execute(this::drain);
+        }
+    }
+
+    // the task, never runs twice at once, so the subscriber is called by one thread at a time
+    private void drain() {
+        int work_done = 1;
+        do {
+            if (!terminated) {
+                deliver();
+            }
+            work_done = work.addAndGet(-work_done);
+        } while (work_done != 0);
+    }
+
+    private void deliver() {
+        long demand = requested.get();
+        long delivered = 0;
+        while (delivered < demand && !cancelled && error == null) {
+            RotationEvent event;
+            lock.lock();
+            try {
+                event = buffer.pollFirst();
+                if (event != null) {
+                    not_full.signal();
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (event == null) {
+                break;
+            }
+            subscriber.onNext(event);
+            delivered++;
+        }
+        if (delivered > 0 && demand != Long.MAX_VALUE) {
+            requested.addAndGet(-delivered);
+        }
+
+        if (cancelled) {
+            return;
+        }
+        if (error != null) {
+            terminated = true;
+            cancel();
+            subscriber.onError(error);
+        } else if (completed && buffer_empty()) {
+            terminated = true;
+            cancel();
+            subscriber.onComplete();
+        }
+    }
+
+    private boolean buffer_empty() {
+        lock.lock();
+        try {
+            return buffer.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void request(long n) {
+        if (n <= 0) {
+            // not from here, the task may be calling onNext() right now
+            error = new IllegalArgumentException("requested " + n + " events");
+            schedule();
+            return;
+        }
+        requested.getAndUpdate(demand -> demand + n < 0 ? Long.MAX_VALUE : demand + n);
+        schedule();
+    }
+
+    // the cube is closed: what is in the buffer is still passed on, then the subscriber gets onComplete()
+    public void complete() {
+        completed = true;
+        lock.lock();
+        try {
+            not_full.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        schedule();
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+        on_cancel.run();
+        lock.lock();
+        try {
+            buffer.clear();
+            not_full.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
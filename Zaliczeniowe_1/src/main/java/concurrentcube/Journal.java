@@ -0,0 +1,274 @@
+package concurrentcube;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// write-ahead journal of a cube: every change of the cube is appended to the file as a record of RECORD bytes
+// before the pieces move - sequence number (long), kind, side, check (short) and layer (int).
+// A RESTORE record is followed by the snapshot the cube has been restored from, its length is in place of the layer
+// and it is padded to whole records.
+// With SYNC every record is forced to the disk on its own, with GROUP whoever waits for the disk
+// forces everything written so far, so the rotations waiting at the same time share one force.
+// If writing or forcing fails, what has not been forced yet is cut off (its rotations fail, so recover() must not
+// do them) and the journal refuses every append after that.
+class Journal implements AutoCloseable {
+
+    static final int RECORD = 16;
+    static final byte ROTATE = 1;
+    static final byte REORIENT = 2;
+    static final byte RESTORE = 3;
+
+    // what the cube has to do again to get from a snapshot to the state written down in the journal
+    interface Replay {
+        // snapshot only for RESTORE, null otherwise
+        void apply(byte kind, int side, int layer, ByteBuffer snapshot);
+    }
+
+    private final FileChannel channel;
+    private final Cube.Journaling journaling;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition forced = lock.newCondition();
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD);
+    private long last_sequence;
+    private long durable_sequence; // of the last record certainly on the disk
+    private long written = 0; // bytes of the file
+    private long durable = 0; // bytes of the file certainly on the disk
+    private boolean forcing = false;
+    private IOException failure = null;
+
+    public Journal(Path file, Cube.Journaling journaling) throws IOException {
+        this(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE),
+                journaling);
+    }
+
+    Journal(FileChannel channel, Cube.Journaling journaling) throws IOException {
+        this.journaling = journaling;
+        this.channel = channel;
+
+        // a record cut short or broken by a crash is the end of the journal, it is overwritten from now on
+        last_sequence = 0;
+        ByteBuffer read = ByteBuffer.allocate(RECORD);
+        long position = 0;
+        while (position + RECORD <= channel.size()) {
+            read.clear();
+            channel.read(read, position);
+            read.flip();
+            long sequence = read.getLong();
+            byte kind = read.get();
+            int layer = read.getInt(RECORD - 4);
+            if (!valid(sequence, kind, read.get(), read.getShort(), layer)) {
+                break;
+            }
+            long end = position + RECORD + (kind == RESTORE ? padded(layer) : 0);
+            if (end > channel.size()) {
+                break;
+            }
+            last_sequence = sequence;
+            position = end;
+        }
+        channel.truncate(position);
+        written = durable = position;
+        durable_sequence = last_sequence;
+    }
+
+    private static short check(long sequence, byte kind, byte side, int layer) {
+        long mixed = (sequence * 31 + kind) * 31 + side;
+        mixed = (mixed * 31 + layer) * 0x9E3779B97F4A7C15L;
+        return (short) (mixed >>> 48);
+    }
+
+    private static boolean valid(long sequence, byte kind, byte side, short check, int layer) {
+        return sequence > 0 && (kind == ROTATE || kind == REORIENT || (kind == RESTORE && layer >= 0))
+                && check == check(sequence, kind, side, layer);
+    }
+
+    private static long padded(int length) {
+        return (length + RECORD - 1L) / RECORD * RECORD;
+    }
+
+    public long last_sequence() {
+        lock.lock();
+        try {
+            return last_sequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // the journal may have been emptied by a checkpoint, the records after it must still come after the snapshot
+    public void continue_after(long sequence) {
+        lock.lock();
+        try {
+            last_sequence = Math.max(last_sequence, sequence);
+            durable_sequence = Math.max(durable_sequence, sequence);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // appends the record and returns when it is on the disk, a failure leaves the cube as it was
+    public void append(byte kind, int side, int layer) {
+        append(kind, side, layer, null);
+    }
+
+    // the cube is going to be put into the state of snapshot, which cannot be done again from the records before
+    public void append_restore(byte[] snapshot) {
+        append(RESTORE, 0, snapshot.length, snapshot);
+    }
+
+    private void append(byte kind, int side, int layer, byte[] snapshot) {
+        long end;
+        lock.lock();
+        try {
+            if (failure != null) {
+                throw new IOException("an earlier write to the journal has failed", failure);
+            }
+            long sequence = last_sequence + 1;
+            ByteBuffer out = record;
+            if (snapshot != null) {
+                out = ByteBuffer.allocate(Math.toIntExact(RECORD + padded(snapshot.length)));
+            }
+            out.clear();
+            out.putLong(sequence).put(kind).put((byte) side).putShort(check(sequence, kind, (byte) side, layer))
+                    .putInt(layer);
+            if (snapshot != null) {
+                out.put(snapshot);
+            }
+            out.position(0);
+            while (out.hasRemaining()) {
+                channel.write(out, written + out.position());
+            }
+            last_sequence = sequence;
+            written += out.limit();
+            end = written;
+
+            if (journaling == Cube.Journaling.SYNC) {
+                channel.force(false);
+                durable = written;
+                durable_sequence = last_sequence;
+                return;
+            }
+        } catch (IOException e) {
+            throw fail(e);
+        } finally {
+            lock.unlock();
+        }
+        await_durable(end);
+    }
+
+    // called with the lock held. Whoever has written something that is not on the disk yet has not returned,
+    // so it gets the exception too and it is safe to cut off everything after durable
+    private UncheckedIOException fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+            try {
+                channel.truncate(durable);
+            } catch (IOException again) {
+                e.addSuppressed(again);
+            }
+            written = durable;
+            last_sequence = durable_sequence;
+            forced.signalAll();
+        }
+        return new UncheckedIOException(e);
+    }
+
+    // the first one to wait forces everything written so far, whoever comes while it is forcing waits for it
+    // and then, if that was not enough, forces again itself - together with everybody who has come meanwhile
+    private void await_durable(long end) {
+        lock.lock();
+        try {
+            while (durable < end) {
+                if (failure != null) {
+                    throw new IOException("forcing the journal to the disk has failed", failure);
+                }
+                if (forcing) {
+                    forced.awaitUninterruptibly();
+                    continue;
+                }
+                forcing = true;
+                long target = written;
+                long target_sequence = last_sequence;
+                lock.unlock();
+                try {
+                    channel.force(false);
+                } finally {
+                    lock.lock();
+                    forcing = false;
+                    forced.signalAll();
+                }
+                durable = Math.max(durable, target);
+                durable_sequence = Math.max(durable_sequence, target_sequence);
+            }
+        } catch (IOException e) {
+            throw fail(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // passes every record with a sequence number greater than after to replay, returns how many there were
+    public long replay(long after, Replay replay) throws IOException {
+        lock.lock();
+        try {
+            ByteBuffer read = ByteBuffer.allocate(RECORD);
+            long replayed = 0;
+            for (long position = 0; position < written; position += RECORD) {
+                read.clear();
+                channel.read(read, position);
+                read.flip();
+                long sequence = read.getLong();
+                byte kind = read.get();
+                byte side = read.get();
+                read.getShort();
+                int layer = read.getInt();
+                ByteBuffer snapshot = null;
+                if (kind == RESTORE) {
+                    snapshot = ByteBuffer.allocate(layer);
+                    while (snapshot.hasRemaining()) {
+                        channel.read(snapshot, position + RECORD + snapshot.position());
+                    }
+                    snapshot.flip();
+                    position += padded(layer);
+                }
+                if (sequence > after) {
+                    replay.apply(kind, side, layer, snapshot);
+                    replayed++;
+                }
+            }
+            return replayed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // everything up to now is in a snapshot, the records can go - the sequence numbers go on
+    public void truncate() throws IOException {
+        lock.lock();
+        try {
+            channel.truncate(0);
+            channel.force(true);
+            written = durable = 0;
+            durable_sequence = last_sequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            channel.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package concurrentcube;
+
+import java.util.concurrent.RecursiveAction;
+
+// moves pieces number [from, to) of one layer, splitting the range in halves until it is small enough,
+// so that a single rotation of a very large cube can use more than one core
+class LayerRotation extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Side left, top, right, bottom;
+    private final int left_start, top_start, right_start, bottom_start;
+    private final int left_step, top_step, right_step, bottom_step;
+    private final int from, to, grain;
+
+    public LayerRotation(Side left, int left_start, int left_step,
+                         Side top, int top_start, int top_step,
+                         Side right, int right_start, int right_step,
+                         Side bottom, int bottom_start, int bottom_step,
+                         int from, int to, int grain) {
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+        this.left_start = left_start;
+        this.top_start = top_start;
+        this.right_start = right_start;
+        this.bottom_start = bottom_start;
+        this.left_step = left_step;
+        this.top_step = top_step;
+        this.right_step = right_step;
+        this.bottom_step = bottom_step;
+        this.from = from;
+        this.to = to;
+        this.grain = grain;
+    }
+
+    private LayerRotation part(int part_from, int part_to) {
+        return new LayerRotation(
+                left, left_start, left_step,
+                top, top_start, top_step,
+                right, right_start, right_step,
+                bottom, bottom_start, bottom_step,
+                part_from, part_to, grain);
+    }
+
+    @Override
+    protected void compute() {
+        if (to - from <= grain) {
+            Side.rotate_layer_pieces(
+                    left, left_start + from * left_step, left_step,
+                    top, top_start + from * top_step, top_step,
+                    right, right_start + from * right_step, right_step,
+                    bottom, bottom_start + from * bottom_step, bottom_step,
+                    to - from);
+            return;
+        }
+
+        int middle = (from + to) >>> 1;
+        invokeAll(part(from, middle), part(middle, to));
+    }
+}
@@ -0,0 +1,82 @@
+package concurrentcube;
+
+import static concurrentcube.Cube.correlations;
+
+// rewrites a sequence of rotations into a shorter one leaving the cube in the same state.
+// Rotations of one axis commute, so a run of them only turns every layer of the axis some number of times,
+// counted in quarter turns modulo 4 as seen from the side of the axis with the smaller number
+// (layer k of a side is layer size - k - 1 of the opposite side, turned the other way).
+// A run that turns nothing disappears, and the runs around it are merged if they share their axis.
+final class MoveNormalizer {
+
+    private static final int BACK = 4;
+
+    private MoveNormalizer() {
+    }
+
+    private static int axis_side(int side) {
+        return Math.min(side, correlations[side][BACK]);
+    }
+
+    // rewrites sides[0, length) and layers[0, length) in place, returns the length of the new sequence
+    static int normalize(int size, int[] sides, int[] layers, int length) {
+        int[] turns = new int[size]; // of every layer of the run, seen from its axis side
+        int[] touched = new int[size]; // layers of the run in the order they have first come
+        boolean[] seen = new boolean[size];
+        int[] run_starts = new int[length]; // of the runs already written, none of them empty
+        int runs = 0;
+        int out = 0;
+        int in = 0;
+
+        while (in < length) {
+            int axis = axis_side(sides[in]);
+            int touched_cnt = 0;
+
+            // the last run written has the same axis when the runs between them have cancelled out
+            int from = out;
+            if (runs > 0 && axis_side(sides[run_starts[runs - 1]]) == axis) {
+                from = run_starts[--runs];
+            }
+            for (int i = from; i < out; i++) {
+                touched_cnt = count(size, axis, sides[i], layers[i], turns, seen, touched, touched_cnt);
+            }
+            while (in < length && axis_side(sides[in]) == axis) {
+                touched_cnt = count(size, axis, sides[in], layers[in], turns, seen, touched, touched_cnt);
+                in++;
+            }
+
+            // never more rotations than have been counted, so the writes stay behind in
+            out = from;
+            for (int i = 0; i < touched_cnt; i++) {
+                int layer = touched[i];
+                int quarters = turns[layer];
+                turns[layer] = 0;
+                seen[layer] = false;
+                if (quarters == 3) {
+                    sides[out] = correlations[axis][BACK];
+                    layers[out++] = size - layer - 1;
+                } else {
+                    for (int q = 0; q < quarters; q++) {
+                        sides[out] = axis;
+                        layers[out++] = layer;
+                    }
+                }
+            }
+            if (out > from) {
+                run_starts[runs++] = from;
+            }
+        }
+        return out;
+    }
+
+    private static int count(int size, int axis, int side, int layer,
+                             int[] turns, boolean[] seen, int[] touched, int touched_cnt) {
+        int axis_layer = (side == axis ? layer : size - layer - 1);
+        if (!seen[axis_layer]) {
+            seen[axis_layer] = true;
+            touched[touched_cnt++] = axis_layer;
+        }
+        turns[axis_layer] = (turns[axis_layer] + (side == axis ? 1 : 3)) % 4;
+        return touched_cnt;
+    }
+}
@@ -0,0 +1,120 @@
+package concurrentcube;
+
+import java.util.concurrent.RecursiveTask;
+
+import static concurrentcube.Cube.correlations;
+
+// compiles rotations number [from, to) of a sequence into one permutation of the pieces, in the order of show():
+// after the rotations, the piece at place i is the one that was at place permutation[i] before them.
+// The sequence is split in halves until a part is small enough, a part is carried out on the numbers
+// of the places instead of the colors (the faces are turned like Side does, by a number only),
+// then the permutations of the halves are composed on the way back up
+class MovePermutation extends RecursiveTask<int[]> {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int SIDE_CNT = 6;
+    private static final int TOP = 0;
+    private static final int LEFT = 1;
+    private static final int FRONT = 2;
+    private static final int RIGHT = 3;
+    private static final int BACK = 4;
+    private static final int BOTTOM = 5;
+
+    private final RotationTable table;
+    private final int[] sides, layers;
+    private final int from, to, grain;
+
+    public MovePermutation(RotationTable table, int[] sides, int[] layers, int from, int to, int grain) {
+        this.table = table;
+        this.sides = sides;
+        this.layers = layers;
+        this.from = from;
+        this.to = to;
+        this.grain = grain;
+    }
+
+    @Override
+    protected int[] compute() {
+        if (to - from <= grain) {
+            return carry_out();
+        }
+
+        int middle = (from + to) >>> 1;
+        MovePermutation second = new MovePermutation(table, sides, layers, middle, to, grain);
+        second.fork();
+        int[] first_done = new MovePermutation(table, sides, layers, from, middle, grain).compute();
+        int[] second_done = second.join();
+        // the second half takes its pieces from where the first one has left them
+        for (int i = 0; i < second_done.length; i++) {
+            second_done[i] = first_done[second_done[i]];
+        }
+        return second_done;
+    }
+
+    private int[] carry_out() {
+        int size = table.size();
+        int face_size = size * size;
+        int[][] places = new int[SIDE_CNT][face_size];
+        int[] rotation = new int[SIDE_CNT];
+        for (int face = 0; face < SIDE_CNT; face++) {
+            for (int idx = 0; idx < face_size; idx++) {
+                places[face][idx] = face * face_size + idx;
+            }
+        }
+
+        for (int move = from; move < to; move++) {
+            int side = sides[move];
+            int layer = layers[move];
+            if (layer == 0) {
+                int front = correlations[side][FRONT];
+                rotation[front] = (rotation[front] + 1) % 4;
+            }
+            if (layer == size - 1) {
+                int back = correlations[side][BACK];
+                rotation[back] = (rotation[back] + 3) % 4;
+            }
+
+            int left = table.face(side, LEFT), top = table.face(side, TOP);
+            int right = table.face(side, RIGHT), bottom = table.face(side, BOTTOM);
+            int[] l = places[left], t = places[top], r = places[right], b = places[bottom];
+            int li = start(size, rotation[left], side, layer, LEFT), l_step = step(size, rotation[left], side, LEFT);
+            int ti = start(size, rotation[top], side, layer, TOP), t_step = step(size, rotation[top], side, TOP);
+            int ri = start(size, rotation[right], side, layer, RIGHT), r_step = step(size, rotation[right], side, RIGHT);
+            int bi = start(size, rotation[bottom], side, layer, BOTTOM), b_step = step(size, rotation[bottom], side, BOTTOM);
+            cycle(l, li, l_step, t, ti, t_step, r, ri, r_step, b, bi, b_step, size);
+        }
+
+        int[] permutation = new int[SIDE_CNT * face_size];
+        int out = 0;
+        for (int face = 0; face < SIDE_CNT; face++) {
+            int col_step = Side.step(size, rotation[face], 0, 1);
+            for (int row = 0; row < size; row++) {
+                for (int col = 0, idx = Side.index(size, rotation[face], row, 0); col < size; col++, idx += col_step) {
+                    permutation[out++] = places[face][idx];
+                }
+            }
+        }
+        return permutation;
+    }
+
+    // like Side.rotate_layer_pieces(), only with the numbers of the places
+    private static void cycle(int[] l, int li, int l_step, int[] t, int ti, int t_step,
+                              int[] r, int ri, int r_step, int[] b, int bi, int b_step, int count) {
+        for (int i = 0; i < count; i++, li += l_step, ti += t_step, ri += r_step, bi += b_step) {
+            int buffer = l[li];
+            l[li] = b[bi];
+            b[bi] = r[ri];
+            r[ri] = t[ti];
+            t[ti] = buffer;
+        }
+    }
+
+    private int start(int size, int rotation, int side, int layer, int direction) {
+        return Side.index(size, rotation, table.row(side, layer, direction), table.col(side, layer, direction));
+    }
+
+    private int step(int size, int rotation, int side, int direction) {
+        return Side.step(size, rotation, table.row_step(side, direction), table.col_step(side, direction));
+    }
+}
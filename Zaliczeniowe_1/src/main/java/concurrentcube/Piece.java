@@ -1,18 +0,0 @@
-package concurrentcube;
-
-public class Piece {
-
-    private int color;
-
-    public Piece(int color) {
-        this.color = color;
-    }
-
-    public int get_color() {
-        return this.color;
-    }
-
-    public void set_color(int color) {
-        this.color = color;
-    }
-}
@@ -0,0 +1,47 @@
+package concurrentcube;
+
+// a finished rotation as seen by the subscribers of Cube.rotationEvents()
+public final class RotationEvent {
+
+    private final int side;
+    private final int layer;
+    private final long sequence;
+    private final long missed;
+
+    RotationEvent(int side, int layer, long sequence, long missed) {
+        this.side = side;
+        this.layer = layer;
+        this.sequence = sequence;
+        this.missed = missed;
+    }
+
+    public int side() {
+        return side;
+    }
+
+    public int layer() {
+        return layer;
+    }
+
+    // rotations of one cube get growing numbers in the order they have started
+    public long sequence() {
+        return sequence;
+    }
+
+    // how many events the subscriber has lost right before this one (with DROP and CONFLATE) - a change
+    // of the whole cube that is not a rotation, like reorient(), restore() or applySequence(), counts as one
+    // lost event too.
+    // If it is not 0 the subscriber should take show() again instead of replaying the events
+    public long missed() {
+        return missed;
+    }
+
+    RotationEvent with_missed(long more) {
+        return new RotationEvent(side, layer, sequence, missed + more);
+    }
+
+    @Override
+    public String toString() {
+        return "rotation " + sequence + ": " + side + " " + layer + (missed == 0 ? "" : " (" + missed + " missed)");
+    }
+}
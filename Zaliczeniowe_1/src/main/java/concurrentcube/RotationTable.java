@@ -0,0 +1,88 @@
+package concurrentcube;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import static concurrentcube.Cube.correlations;
+import static concurrentcube.Cube.layers;
+import static concurrentcube.Cube.orders;
+import static concurrentcube.Cube.orientations;
+
+// correlations, orientations, orders and layers compiled once per cube size into plain numbers,
+// so that rotating a layer does not have to look at any enum.
+// rotating layer k of side s, the i-th piece on the face in the direction dir of s
+// is in row row(s, k, dir) + i * row_step(s, dir) and column col(s, k, dir) + i * col_step(s, dir) of face(s, dir)
+final class RotationTable {
+
+    private static final int SIDE_CNT = 6;
+    private static final int FIELDS = 7;
+    private static final int FACE = 0;
+    private static final int ROW = 1;
+    private static final int COL = 2;
+    private static final int LAYER_ROW_STEP = 3;
+    private static final int LAYER_COL_STEP = 4;
+    private static final int ROW_STEP = 5;
+    private static final int COL_STEP = 6;
+
+    private static final ConcurrentHashMap<Integer, RotationTable> tables = new ConcurrentHashMap<>();
+
+    private final int size;
+    private final int[] entries = new int[SIDE_CNT * SIDE_CNT * FIELDS];
+
+    private RotationTable(int size) {
+        this.size = size;
+
+        for (int side = 0; side < SIDE_CNT; side++) {
+            for (int direction = 0; direction < SIDE_CNT; direction++) {
+                if (orientations[side][direction] == Cube.Orientation.DEFAULT) {
+                    continue; // front and back are not part of the layer
+                }
+                int entry = (side * SIDE_CNT + direction) * FIELDS;
+
+                // layer k is the k-th or the (size - k - 1)-st row / column, pieces go from its start or from its end
+                int layer_start = (layers[side][direction] == Cube.Layer.CORRECT ? 0 : size - 1);
+                int layer_step = (layers[side][direction] == Cube.Layer.CORRECT ? 1 : -1);
+                int piece_start = (orders[side][direction] == Cube.Order.IN_ORDER ? 0 : size - 1);
+                int piece_step = (orders[side][direction] == Cube.Order.IN_ORDER ? 1 : -1);
+                boolean horizontal = (orientations[side][direction] == Cube.Orientation.HORIZONTAL);
+
+                entries[entry + FACE] = correlations[side][direction];
+                entries[entry + ROW] = (horizontal ? layer_start : piece_start);
+                entries[entry + COL] = (horizontal ? piece_start : layer_start);
+                entries[entry + LAYER_ROW_STEP] = (horizontal ? layer_step : 0);
+                entries[entry + LAYER_COL_STEP] = (horizontal ? 0 : layer_step);
+                entries[entry + ROW_STEP] = (horizontal ? 0 : piece_step);
+                entries[entry + COL_STEP] = (horizontal ? piece_step : 0);
+            }
+        }
+    }
+
+    public static RotationTable of(int size) {
+        return tables.computeIfAbsent(size, RotationTable::new);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int face(int side, int direction) {
+        return entries[(side * SIDE_CNT + direction) * FIELDS + FACE];
+    }
+
+    public int row(int side, int layer, int direction) {
+        int entry = (side * SIDE_CNT + direction) * FIELDS;
+        return entries[entry + ROW] + layer * entries[entry + LAYER_ROW_STEP];
+    }
+
+    public int col(int side, int layer, int direction) {
+        int entry = (side * SIDE_CNT + direction) * FIELDS;
+        return entries[entry + COL] + layer * entries[entry + LAYER_COL_STEP];
+    }
+
+    public int row_step(int side, int direction) {
+        return entries[(side * SIDE_CNT + direction) * FIELDS + ROW_STEP];
+    }
+
+    public int col_step(int side, int direction) {
+        return entries[(side * SIDE_CNT + direction) * FIELDS + COL_STEP];
+    }
+}
@@ -0,0 +1,46 @@
+package concurrentcube;
+
+import java.util.concurrent.Semaphore;
+
+// the original protocol: operations join the group in the order they arrive, an operation of a different
+// group holds mutex until everybody in the group working now has left, so everybody else waits behind it
+class SemaphoreGate implements AxisGate {
+
+    private final Semaphore mutex;
+    private final Semaphore guardian;
+
+    private int previous_group = SHOW;
+    private int rotating_previous_axis = 0;
+
+    public SemaphoreGate(Cube.LockStrategy strategy) {
+        this.mutex = strategy.semaphore(1);
+        this.guardian = strategy.semaphore(0);
+    }
+
+    @Override
+    public void enter(int group) throws InterruptedException {
+        try {
+            mutex.acquire();
+            // one WHOLE waits even for another one, as if it were of a different group
+            if (previous_group != group || group == WHOLE) {
+                try {
+                    guardian.acquire(rotating_previous_axis);
+                    previous_group = group;
+                    rotating_previous_axis = 0;
+                } catch (InterruptedException e) {
+                    throw new InterruptedException();
+                }
+            }
+            rotating_previous_axis++;
+        } catch (InterruptedException e) {
+            throw new InterruptedException();
+        } finally {
+            mutex.release();
+        }
+    }
+
+    @Override
+    public void leave() {
+        guardian.release();
+    }
+}
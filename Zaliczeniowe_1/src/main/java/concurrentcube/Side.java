@@ -1,104 +1,241 @@
 package concurrentcube;
 
-import java.util.ArrayList;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
 
-public class Side extends Cube {
+import concurrentcube.Cube.Direction;
+
+// one face of a cube, only its pieces and the way they are turned - everything else is the Cube's
+public class Side {
 
     private final int size;
-    private final Piece[][] pieces;
+    // colors of the pieces, stored row by row - the piece in row r and column c is at index r * size + c
+    private final byte[] pieces;
+    // how many quarter turns clockwise the face has been rotated by - turning the whole face only changes this,
+    // so the piece seen in row r and column c is found through index(r, c)
+    private int rotation = 0;
+
+    // the last picture of the face taken by show(), valid as long as no rotation with a ticket greater than
+    // its stamp has changed the face
+    private static class Rendering {
+        private final long stamp;
+        private final byte[] digits;
+
+        Rendering(long stamp, byte[] digits) {
+            this.stamp = stamp;
+            this.digits = digits;
+        }
+    }
+
+    private volatile Rendering rendering = null;
+    private volatile long modified = 0;
+
+    // hashes[q] is the XOR of key(color, row, col) of all pieces, where the pieces are seen the way they are
+    // when rotation is q - turning the face only changes which of them is the hash of the face.
+    // Kept only when the cube keeps its state hash, rotations of other layers change them at the same time
+    private static final VarHandle HASHES = MethodHandles.arrayElementVarHandle(long[].class);
+    private final long[] hashes = new long[4];
+    private long[] keys = null; // place_keys(size), set by rehash()
 
     public Side(int size, int color) {
         this.size = size;
-        this.pieces = new Piece[size][size];
+        this.pieces = new byte[size * size];
 
-        for (int row = 0; row < size; row++) {
-            for (int col = 0; col < size; col++) {
-                this.pieces[row][col] = new Piece(color);
-            }
+        for (int idx = 0; idx < size * size; idx++) {
+            this.pieces[idx] = (byte) color;
         }
     }
 
-    private void rotate_pieces(Piece p1, Piece p2, Piece p3, Piece p4, Direction direction) {
+    // random numbers of the places of a face, one table per size of the cube (splitmix64)
+    private static final ConcurrentHashMap<Integer, long[]> place_keys = new ConcurrentHashMap<>();
+    // odd, so that multiplying by them keeps the numbers different
+    private static final long[] color_keys = {
+            0x9E3779B97F4A7C15L, 0xBF58476D1CE4E5B9L, 0x94D049BB133111EBL,
+            0xD6E8FEB86659FD93L, 0xA0761D6478BD642FL, 0xE7037ED1A0B428DBL
+    };
+
+    static long[] place_keys(int size) {
+        return place_keys.computeIfAbsent(size, s -> {
+            long[] keys = new long[s * s];
+            long z = s;
+            for (int place = 0; place < keys.length; place++) {
+                z += 0x9E3779B97F4A7C15L;
+                long k = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+                k = (k ^ (k >>> 27)) * 0x94D049BB133111EBL;
+                keys[place] = k ^ (k >>> 31);
+            }
+            return keys;
+        });
+    }
 
-        int buffer = p1.get_color();
-        switch (direction) {
-            case CLOCKWISE:
-                p1.set_color(p4.get_color());
-                p4.set_color(p3.get_color());
-                p3.set_color(p2.get_color());
-                p2.set_color(buffer);
-                break;
+    // the random number of a piece of the color seen in the given row and column of a face
+    static long key(long[] place_keys, int size, int color, int row, int col) {
+        return place_keys[row * size + col] * color_keys[color];
+    }
 
-            case COUNTER_CLOCKWISE:
-                p1.set_color(p2.get_color());
-                p2.set_color(p3.get_color());
-                p3.set_color(p4.get_color());
-                p4.set_color(buffer);
-                break;
+    // XORs the keys of count pieces, from start by step in pieces, into the four hashes. Called before
+    // the pieces move and after they have moved, it takes the old pieces out of the hashes and puts the new in
+    public void hash_pieces(int start, int step, int count) {
+        long[] keys = this.keys;
+        // a layer goes along a row or along a column, so step is +-1 or +-size
+        int row_step = (step == 1 || step == -1 ? 0 : step / size);
+        int col_step = (row_step == 0 ? step : 0);
+        long hash_0 = 0, hash_1 = 0, hash_2 = 0, hash_3 = 0;
+        int row = start / size, col = start % size;
+        for (int i = 0, idx = start; i < count; i++, idx += step, row += row_step, col += col_step) {
+            long color_key = color_keys[pieces[idx]];
+            hash_0 ^= keys[idx] * color_key;
+            hash_1 ^= keys[col * size + (size - row - 1)] * color_key;
+            hash_2 ^= keys[(size - row - 1) * size + (size - col - 1)] * color_key;
+            hash_3 ^= keys[(size - col - 1) * size + row] * color_key;
         }
+        HASHES.getAndBitwiseXor(hashes, 0, hash_0);
+        HASHES.getAndBitwiseXor(hashes, 1, hash_1);
+        HASHES.getAndBitwiseXor(hashes, 2, hash_2);
+        HASHES.getAndBitwiseXor(hashes, 3, hash_3);
     }
 
-    // direction here answers the question "in which from the requesting side am I"?
-    public ArrayList<Piece> get_layer_pieces(int requesting_side, int layer_number, int direction) {
+    // computes the hashes from all pieces again
+    public void rehash() {
+        keys = place_keys(size);
+        for (int q = 0; q < 4; q++) {
+            HASHES.setVolatile(hashes, q, 0L);
+        }
+        for (int row = 0; row < size; row++) {
+            hash_pieces(row * size, 1, size);
+        }
+    }
 
-        Orientation orientation  = orientations[requesting_side][direction];
-        Order order = orders[requesting_side][direction];
-        Layer symmetry = layers[requesting_side][direction];
+    public long hash() {
+        return (long) HASHES.getVolatile(hashes, rotation);
+    }
 
-        ArrayList<Piece> layer_pieces = new ArrayList<>();
-        int layer = (symmetry == Layer.CORRECT ? layer_number : size - layer_number - 1);
+    // index in pieces of the piece seen in the given row and column of the face turned by rotation
+    private int index(int rotation, int row, int col) {
+        return index(size, rotation, row, col);
+    }
 
-        for (int i = 0; i < size; i++) {
-            int idx = (order == Order.IN_ORDER ? i : size - i - 1);
-            Piece p = (orientation == Orientation.HORIZONTAL ? pieces[layer][idx] : pieces[idx][layer]);
-            layer_pieces.add(p);
+    static int index(int size, int rotation, int row, int col) {
+        switch (rotation) {
+            case 0:
+                return row * size + col;
+            case 1:
+                return (size - col - 1) * size + row;
+            case 2:
+                return (size - row - 1) * size + (size - col - 1);
+            default:
+                return col * size + (size - row - 1);
         }
+    }
+
+    // how much the index in pieces changes when we move by row_step rows and col_step columns of the face
+    private int step(int rotation, int row_step, int col_step) {
+        return step(size, rotation, row_step, col_step);
+    }
 
-        return layer_pieces;
+    static int step(int size, int rotation, int row_step, int col_step) {
+        switch (rotation) {
+            case 0:
+                return row_step * size + col_step;
+            case 1:
+                return -col_step * size + row_step;
+            case 2:
+                return -row_step * size - col_step;
+            default:
+                return col_step * size - row_step;
+        }
     }
 
-    public void rotate_layer_pieces(
-            ArrayList<Piece> left_pieces,
-            ArrayList<Piece> top_pieces,
-            ArrayList<Piece> right_pieces,
-            ArrayList<Piece> bottom_pieces) {
+    // the layer's pieces on this face are at indexes layer_start(...) + i * layer_step(...) of pieces
+    public int layer_start(RotationTable table, int requesting_side, int layer, int direction) {
+        return index(rotation, table.row(requesting_side, layer, direction), table.col(requesting_side, layer, direction));
+    }
 
-        for (int i = 0; i < size; i++) {
-            Piece p1 = left_pieces.get(i);
-            Piece p2 = top_pieces.get(i);
-            Piece p3 = right_pieces.get(i);
-            Piece p4 = bottom_pieces.get(i);
+    public int layer_step(RotationTable table, int requesting_side, int direction) {
+        return step(rotation, table.row_step(requesting_side, direction), table.col_step(requesting_side, direction));
+    }
 
-            rotate_pieces(p1, p2, p3, p4, Direction.CLOCKWISE);
+    // pieces from the left side go to the top side, from the top to the right and so on
+    public static void rotate_layer_pieces(
+            Side left, int left_start, int left_step,
+            Side top, int top_start, int top_step,
+            Side right, int right_start, int right_step,
+            Side bottom, int bottom_start, int bottom_step,
+            int count) {
+
+        byte[] l = left.pieces;
+        byte[] t = top.pieces;
+        byte[] r = right.pieces;
+        byte[] b = bottom.pieces;
+        int li = left_start, ti = top_start, ri = right_start, bi = bottom_start;
+
+        for (int i = 0; i < count; i++) {
+            byte buffer = l[li];
+            l[li] = b[bi];
+            b[bi] = r[ri];
+            r[ri] = t[ti];
+            t[ti] = buffer;
+
+            li += left_step;
+            ti += top_step;
+            ri += right_step;
+            bi += bottom_step;
         }
     }
 
-    // the pieces are rotated in a spiral pattern, from the outside to the inside
+    // the pieces are not moved at all, only the way we look at them changes
     public void rotate_front_layer(Direction direction) {
-        int start_col = 0;
+        rotation = (rotation + (direction == Direction.CLOCKWISE ? 1 : 3)) % 4;
+    }
 
-        for (int row = 0; row < size / 2; row++, start_col++) {
-            for (int col = start_col; col < size - start_col - 1; col++) {
-                Piece p1 = pieces[row][col];
-                Piece p2 = pieces[col][size - row - 1];
-                Piece p3 = pieces[size - row - 1][size - col - 1];
-                Piece p4 = pieces[size - col - 1][row];
+    // a rotation with the given ticket (see Cube.started) is going to change this face
+    public void modify(long ticket) {
+        modified = ticket;
+    }
+
+    // writes the colors of the face row by row, one ASCII digit per piece, starting at target[offset].
+    // stamp is the number of rotations started so far, all of them have already finished
+    public void render(ByteBuffer target, int offset, long stamp) {
+        Rendering cached = rendering;
+        if (cached == null || cached.stamp < modified) {
+            // if a rotation changes the face while we are drawing it, it has a ticket greater than stamp,
+            // so what we draw now will not be used again by anybody
+            byte[] digits = new byte[size * size];
+            draw(digits);
+            cached = new Rendering(stamp, digits);
+            rendering = cached;
+        }
+        target.put(offset, cached.digits);
+    }
 
-                rotate_pieces(p1, p2, p3, p4, direction);
+    // the colors of the face row by row, as show() sees them
+    public void colors(byte[] target, int offset) {
+        int rotation = this.rotation;
+        int col_step = step(rotation, 0, 1);
+        for (int row = 0; row < size; row++) {
+            for (int col = 0, idx = index(rotation, row, 0); col < size; col++, idx += col_step) {
+                target[offset++] = pieces[idx];
             }
         }
     }
 
-    public String get_side() {
-        StringBuilder builder = new StringBuilder();
+    // the opposite of colors(), the face is left not turned at all
+    public void set_colors(byte[] source, int offset) {
+        System.arraycopy(source, offset, pieces, 0, size * size);
+        rotation = 0;
+    }
 
+    private void draw(byte[] digits) {
+        int rotation = this.rotation; // read once, show() may call this while the face is being turned
+        int col_step = step(rotation, 0, 1);
+        int offset = 0;
         for (int row = 0; row < size; row++) {
-            for (int col = 0; col < size; col++) {
-                builder.append(pieces[row][col].get_color());
+            for (int col = 0, idx = index(rotation, row, 0); col < size; col++, idx += col_step) {
+                digits[offset++] = (byte) ('0' + pieces[idx]);
             }
         }
-
-        return builder.toString();
     }
 
 }
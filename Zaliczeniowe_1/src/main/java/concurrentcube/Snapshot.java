@@ -0,0 +1,112 @@
+package concurrentcube;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// the binary form of a cube's state: MAGIC, VERSION, the size and the sequence number of the last journal record
+// the state includes, then the colors of all pieces in the order of show() (face after face, row by row),
+// 3 bits per color, packed from the lowest bit of each byte up. Version 1 had no sequence number
+final class Snapshot {
+
+    static final int MAGIC = 0x43554245; // "CUBE"
+    static final short VERSION = 2;
+    static final int HEADER = 4 + 2 + 4 + 8;
+    private static final int HEADER_1 = 4 + 2 + 4;
+    private static final int BITS = 3;
+
+    private Snapshot() {
+    }
+
+    static int length(int size) {
+        long pieces = 6L * size * size;
+        return Math.toIntExact(HEADER + (pieces * BITS + 7) / 8);
+    }
+
+    // writes colors (one per piece, in the order of show()) at the position of target and moves it past them
+    static void write(ByteBuffer target, int size, long sequence, byte[] colors) {
+        ByteBuffer out = target.duplicate().order(ByteOrder.BIG_ENDIAN);
+        out.putInt(MAGIC).putShort(VERSION).putInt(size).putLong(sequence);
+
+        // packed on the heap and put at once, putting byte by byte into a mapped buffer is much slower.
+        // 8 colors make 3 whole bytes
+        byte[] packed = new byte[length(size) - HEADER];
+        int whole = colors.length / 8 * 8;
+        int idx = 0;
+        for (int i = 0; i < whole; i += 8) {
+            int bits = colors[i] | colors[i + 1] << 3 | colors[i + 2] << 6 | colors[i + 3] << 9
+                    | colors[i + 4] << 12 | colors[i + 5] << 15 | colors[i + 6] << 18 | colors[i + 7] << 21;
+            packed[idx++] = (byte) bits;
+            packed[idx++] = (byte) (bits >>> 8);
+            packed[idx++] = (byte) (bits >>> 16);
+        }
+        int bits = 0;
+        for (int i = whole; i < colors.length; i++) {
+            bits |= colors[i] << (BITS * (i - whole));
+        }
+        for (; idx < packed.length; bits >>>= 8) {
+            packed[idx++] = (byte) bits;
+        }
+        out.put(packed);
+        target.position(out.position());
+    }
+
+    // the sequence number of the last journal record in the snapshot at the position of source
+    static long sequence(ByteBuffer source) {
+        ByteBuffer in = source.duplicate().order(ByteOrder.BIG_ENDIAN);
+        return (header(in) == HEADER ? in.getLong(in.position() + 10) : 0);
+    }
+
+    // checks the header, returns its length
+    private static int header(ByteBuffer in) {
+        if (in.remaining() < HEADER_1 || in.getInt(in.position()) != MAGIC) {
+            throw new IllegalArgumentException("not a snapshot of a cube");
+        }
+        short version = in.getShort(in.position() + 4);
+        if (version != 1 && version != VERSION) {
+            throw new IllegalArgumentException("unknown snapshot version " + version);
+        }
+        return (version == 1 ? HEADER_1 : HEADER);
+    }
+
+    // reads what write() has written for a cube of the given size, moves source past it
+    static byte[] read(ByteBuffer source, int size) {
+        ByteBuffer in = source.duplicate().order(ByteOrder.BIG_ENDIAN);
+        int header = header(in);
+        int snapshot_size = in.getInt(in.position() + 6);
+        if (snapshot_size != size) {
+            throw new IllegalArgumentException("snapshot of a cube of size " + snapshot_size + ", not " + size);
+        }
+        int length = length(size) - HEADER + header;
+        if (in.remaining() < length) {
+            throw new IllegalArgumentException("snapshot cut short");
+        }
+        in.position(in.position() + header);
+
+        byte[] packed = new byte[length - header];
+        in.get(packed);
+        byte[] colors = new byte[6 * size * size];
+        int whole = colors.length / 8 * 8;
+        int idx = 0;
+        int wrong = 0; // colors 6 and 7 do not exist, they are the only ones with both upper bits set
+        for (int i = 0; i < whole; i += 8, idx += 3) {
+            int bits = (packed[idx] & 0xFF) | (packed[idx + 1] & 0xFF) << 8 | (packed[idx + 2] & 0xFF) << 16;
+            for (int j = 0; j < 8; j++, bits >>>= BITS) {
+                colors[i + j] = (byte) (bits & 7);
+                wrong |= bits & (bits >>> 1) & 2;
+            }
+        }
+        int bits = 0;
+        for (int j = 0; idx < packed.length; j += 8) {
+            bits |= (packed[idx++] & 0xFF) << j;
+        }
+        for (int i = whole; i < colors.length; i++, bits >>>= BITS) {
+            colors[i] = (byte) (bits & 7);
+            wrong |= bits & (bits >>> 1) & 2;
+        }
+        if (wrong != 0) {
+            throw new IllegalArgumentException("colors out of range");
+        }
+        source.position(source.position() + length);
+        return colors;
+    }
+}
@@ -0,0 +1,47 @@
+package concurrentcube;
+
+import java.util.concurrent.Semaphore;
+
+// a barging semaphore that first spins for a while hoping the permits come back soon, and parks only then.
+// How long it spins adapts: spinning that paid off makes the next spin longer, spinning in vain makes it shorter.
+class SpinningSemaphore extends Semaphore {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int MIN_SPINS = 16;
+    private static final int MAX_SPINS = 4096;
+
+    private volatile int spins = MIN_SPINS;
+
+    public SpinningSemaphore(int permits) {
+        super(permits, false);
+    }
+
+    private boolean spin(int permits) {
+        int limit = spins;
+        for (int i = 0; i < limit; i++) {
+            if (tryAcquire(permits)) {
+                spins = Math.min(MAX_SPINS, 2 * limit);
+                return true;
+            }
+            Thread.onSpinWait();
+        }
+        spins = Math.max(MIN_SPINS, limit / 2);
+        return false;
+    }
+
+    @Override
+    public void acquire() throws InterruptedException {
+        acquire(1);
+    }
+
+    @Override
+    public void acquire(int permits) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (!spin(permits)) {
+            super.acquire(permits);
+        }
+    }
+}
@@ -2,11 +2,41 @@ package concurrentcube;
 
 import org.junit.jupiter.api.*;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.BiConsumer;
 
 @TestMethodOrder(MethodOrderer.OrderAnnotation.class)
@@ -19,6 +49,7 @@ class CubeTest {
     private static final int RIGHT = 3;
     private static final int BACK = 4;
     private static final int BOTTOM = 5;
+    private static final int[] OPPOSITE = {BOTTOM, RIGHT, BACK, LEFT, FRONT, TOP};
 
     private static int test_num = 1;
     private static final int BS_DELAY = 500; // BeforeShow delay
@@ -1567,6 +1598,2831 @@ class CubeTest {
         System.out.println("\nconcurrent has been " + magnitude_faster + "x faster than linear");
     }
 
+    @Test
+    @Order(900)
+    @DisplayName("Independent cubes do not block each other")
+    public void independent_cubes_do_not_block() {
+        CountDownLatch rotation_started = new CountDownLatch(1);
+        CountDownLatch release_rotation = new CountDownLatch(1);
+        BiConsumer<Integer, Integer> blocking_rotate = (side, layer) -> {
+            rotation_started.countDown();
+            try {
+                release_rotation.await();
+            } catch (InterruptedException e) {
+                System.out.println("Thread " + Thread.currentThread().getName() + ": Interrupted during beforeRotation()");
+            }
+        };
+        Cube blocked_cube = new Cube(4, blocking_rotate, (side, layer) -> {}, () -> {}, () -> {});
+        Cube free_cube = new Cube(4, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+        Thread blocked_thread = new Thread(new Rotor(blocked_cube, FRONT, 0));
+
+        try {
+            blocked_thread.start();
+            rotation_started.await();
+            // the blocked cube is stuck in the middle of a FRONT rotation, other axis and show() on
+            // a different cube must not wait for it
+            free_cube.rotate(TOP, 0);
+            free_cube.rotate(LEFT, 1);
+            String free_cube_show = free_cube.show();
+            System.out.println(free_cube_show);
+            if (ASSERT) {
+                assert blocked_thread.isAlive();
+            }
+            release_rotation.countDown();
+            blocked_thread.join();
+        } catch (InterruptedException e) {
+            release_rotation.countDown();
+            blocked_thread.interrupt();
+            System.out.println("TEST " + test_num + " threw interrupted exception!");
+        }
+    }
+
+    @Test
+    @Order(901)
+    @DisplayName("Multiple cubes rotation throughput")
+    public void multiple_cubes_throughput() {
+        int SIZE = 10;
+        int ROTATIONS = 20000;
+        for (int cube_cnt = 1; cube_cnt <= 2 * Runtime.getRuntime().availableProcessors(); cube_cnt *= 2) {
+            ArrayList<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < cube_cnt; i++) {
+                Cube cube = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+                Random r = new Random(i);
+                threads.add(new Thread(() -> {
+                    try {
+                        for (int j = 0; j < ROTATIONS; j++) {
+                            cube.rotate(r.nextInt(6), r.nextInt(SIZE));
+                        }
+                    } catch (InterruptedException e) {
+                        System.out.println("Thread " + Thread.currentThread().getName() + " : Interrupted when rotating");
+                    }
+                }));
+            }
+
+            Instant start_time = Clock.systemUTC().instant();
+            try {
+                for (Thread thread : threads) {
+                    thread.start();
+                }
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+            } catch (InterruptedException e) {
+                for (Thread thread : threads) {
+                    thread.interrupt();
+                }
+                System.out.println("Rotor thread interrupted");
+            }
+            Duration duration = Duration.between(start_time, Clock.systemUTC().instant());
+
+            long rotations_per_second = (long) cube_cnt * ROTATIONS * 1_000_000_000L / Math.max(1, duration.toNanos());
+            System.out.println(cube_cnt + " cubes: " + rotations_per_second + " rotations/s in total");
+        }
+    }
+
+    private static long used_heap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // the least of a few readings of used_heap(), garbage left by earlier tests may take a while to go
+    private static long settled_heap() {
+        long least = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            least = Math.min(least, used_heap());
+        }
+        return least;
+    }
+
+    @Test
+    @Order(902)
+    @DisplayName("Large cube heap footprint and rotation throughput")
+    public void large_cube_footprint_and_throughput() {
+        int SIZE = 100;
+        int CUBES = 200; // ~12 MB of stickers, so that the garbage of earlier tests does not outweigh them
+        int ROTATIONS = 100000;
+        long heap_before = settled_heap();
+        ArrayList<Cube> cubes = new ArrayList<>();
+        for (int i = 0; i < CUBES; i++) {
+            cubes.add(new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {}));
+        }
+        long heap_after = settled_heap();
+        long per_cube = (heap_after - heap_before) / CUBES;
+        System.out.println(SIZE + "x" + SIZE + " cube takes ~" + per_cube + " bytes of heap");
+        if (ASSERT) {
+            // the cubes are still there, a smaller heap would mean the measurement says nothing
+            assert per_cube > 0;
+            // 6 * SIZE * SIZE stickers, one byte each, plus a bit of bookkeeping
+            assert per_cube < 2L * 6 * SIZE * SIZE;
+        }
+
+        Cube cube = cubes.get(0);
+        Random r = new Random();
+        try {
+            Instant start_time = Clock.systemUTC().instant();
+            for (int i = 0; i < ROTATIONS; i++) {
+                cube.rotate(r.nextInt(6), r.nextInt(SIZE));
+            }
+            Duration duration = Duration.between(start_time, Clock.systemUTC().instant());
+            long rotations_per_second = ROTATIONS * 1_000_000_000L / Math.max(1, duration.toNanos());
+            System.out.println(SIZE + "x" + SIZE + " cube: " + rotations_per_second + " rotations/s");
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw interrupted exception!");
+        }
+    }
+
+    @Test
+    @Order(903)
+    @DisplayName("Rotations do not allocate after warm-up")
+    public void rotations_do_not_allocate() {
+        int SIZE = 10;
+        int ROTATIONS = 200000;
+        com.sun.management.ThreadMXBean thread_bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread_id = Thread.currentThread().getId();
+        Cube cube = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+        int[] sides = new int[ROTATIONS];
+        int[] layers = new int[ROTATIONS];
+        Random r = new Random();
+        for (int i = 0; i < ROTATIONS; i++) {
+            sides[i] = r.nextInt(6);
+            layers[i] = r.nextInt(SIZE);
+        }
+
+        try {
+            // warm-up, so that the JIT compiler has done its job before we start counting
+            for (int i = 0; i < ROTATIONS; i++) {
+                cube.rotate(sides[i], layers[i]);
+            }
+            long allocated_before = thread_bean.getThreadAllocatedBytes(thread_id);
+            for (int i = 0; i < ROTATIONS; i++) {
+                cube.rotate(sides[i], layers[i]);
+            }
+            long allocated = thread_bean.getThreadAllocatedBytes(thread_id) - allocated_before;
+            System.out.println(allocated + " bytes allocated by " + ROTATIONS + " rotations");
+            if (ASSERT) {
+                assert allocated / ROTATIONS == 0;
+            }
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw interrupted exception!");
+        }
+    }
+
+    private static long rotations_per_second(Cube cube, int size, int rotations) throws InterruptedException {
+        Random r = new Random();
+        Instant start_time = Clock.systemUTC().instant();
+        for (int i = 0; i < rotations; i++) {
+            cube.rotate(r.nextInt(6), r.nextInt(size));
+        }
+        Duration duration = Duration.between(start_time, Clock.systemUTC().instant());
+        return rotations * 1_000_000_000L / Math.max(1, duration.toNanos());
+    }
+
+    @Test
+    @Order(904)
+    @DisplayName("Rotation throughput by cube size")
+    public void rotation_throughput_by_size() {
+        int ROTATIONS = 200000;
+        try {
+            for (int size = 3; size <= 300; size *= 10) {
+                Cube cube = new Cube(size, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+                rotations_per_second(cube, size, ROTATIONS); // warm-up
+                System.out.println(size + "x" + size + " cube: " + rotations_per_second(cube, size, ROTATIONS) + " rotations/s");
+            }
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw interrupted exception!");
+        }
+    }
+
+    @Test
+    @Order(905)
+    @DisplayName("Outer and inner layer rotation throughput")
+    public void outer_and_inner_layer_throughput() {
+        try {
+            for (int size = 2; size <= 1024; size *= 2) {
+                Cube cube = new Cube(size, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+                int rotations = Math.max(2000, 2_000_000 / size);
+                Random r = new Random();
+                long[] rotations_per_second = new long[2];
+                for (int repeat = 0; repeat < 2; repeat++) { // the first round is a warm-up
+                    for (int outer = 0; outer < 2; outer++) {
+                        int layer = (outer == 1 ? 0 : size / 2);
+                        Instant start_time = Clock.systemUTC().instant();
+                        for (int i = 0; i < rotations; i++) {
+                            cube.rotate(r.nextInt(6), layer);
+                        }
+                        Duration duration = Duration.between(start_time, Clock.systemUTC().instant());
+                        rotations_per_second[outer] = rotations * 1_000_000_000L / Math.max(1, duration.toNanos());
+                    }
+                }
+                // turning the face itself costs O(1), so outer layers should be about as fast as inner ones
+                System.out.println(size + "x" + size + " cube: outer layer " + rotations_per_second[1] +
+                        " rotations/s, inner layer " + rotations_per_second[0] + " rotations/s");
+            }
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw interrupted exception!");
+        }
+    }
+
+    @Test
+    @Order(906)
+    @DisplayName("Parallel rotation of a large cube")
+    public void parallel_rotation_large_cube() {
+        int SIZE = 2048;
+        int ROTATIONS = 2000;
+        Cube cube_parallel = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {},
+                new Cube.Options().parallelThreshold(SIZE));
+        Cube cube_linear = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+        int[] sides = new int[ROTATIONS];
+        int[] layers = new int[ROTATIONS];
+        Random r = new Random();
+        for (int i = 0; i < ROTATIONS; i++) {
+            sides[i] = r.nextInt(6);
+            layers[i] = r.nextInt(SIZE);
+        }
+
+        try {
+            Instant parallel_start_time = Clock.systemUTC().instant();
+            for (int i = 0; i < ROTATIONS; i++) {
+                cube_parallel.rotate(sides[i], layers[i]);
+            }
+            Duration parallel_duration = Duration.between(parallel_start_time, Clock.systemUTC().instant());
+
+            Instant linear_start_time = Clock.systemUTC().instant();
+            for (int i = 0; i < ROTATIONS; i++) {
+                cube_linear.rotate(sides[i], layers[i]);
+            }
+            Duration linear_duration = Duration.between(linear_start_time, Clock.systemUTC().instant());
+
+            if (ASSERT) {
+                assert cube_parallel.show().equals(cube_linear.show());
+            }
+            System.out.println("\nparallel rotation of " + SIZE + "x" + SIZE + " cube has taken " +
+                    parallel_duration.dividedBy(ROTATIONS).toNanos() + "ns, linear " +
+                    linear_duration.dividedBy(ROTATIONS).toNanos() + "ns");
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw interrupted exception!");
+        }
+    }
+
+    static class Shower implements Runnable {
+        private final Cube cube;
+        private final AtomicBoolean stop;
+        public final ArrayList<String> results = new ArrayList<>();
+        public boolean finished = false;
+
+        public Shower(Cube cube, AtomicBoolean stop) {
+            this.cube = cube;
+            this.stop = stop;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!stop.get()) {
+                    results.add(cube.show());
+                }
+                finished = true;
+            } catch (InterruptedException e) {
+                System.out.println("Thread " + Thread.currentThread().getName() + " : Interrupted when showing cube");
+            }
+        }
+    }
+
+    @Test
+    @Order(907)
+    @DisplayName("Concurrent show() sees only states the cube has been in")
+    public void concurrent_show_sees_real_states() {
+        int SIZE = 5;
+        int ROTATIONS = 20000;
+        Cube cube = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+        Cube cube_linear = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+        int[] sides = new int[ROTATIONS];
+        int[] layers = new int[ROTATIONS];
+        HashSet<String> states = new HashSet<>();
+        Random r = new Random();
+        AtomicBoolean stop = new AtomicBoolean(false);
+        ArrayList<Shower> showers = new ArrayList<>();
+        ArrayList<Thread> show_threads = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            showers.add(new Shower(cube, stop));
+            show_threads.add(new Thread(showers.get(i)));
+        }
+
+        try {
+            states.add(cube_linear.show());
+            for (int i = 0; i < ROTATIONS; i++) {
+                sides[i] = r.nextInt(6);
+                layers[i] = r.nextInt(SIZE);
+                cube_linear.rotate(sides[i], layers[i]);
+                states.add(cube_linear.show());
+            }
+
+            for (Thread show_thread : show_threads) {
+                show_thread.start();
+            }
+            for (int i = 0; i < ROTATIONS; i++) {
+                cube.rotate(sides[i], layers[i]);
+            }
+            stop.set(true);
+            for (Thread show_thread : show_threads) {
+                show_thread.join();
+            }
+        } catch (InterruptedException e) {
+            for (Thread show_thread : show_threads) {
+                show_thread.interrupt();
+            }
+            System.out.println("TEST " + test_num + " threw interrupted exception!");
+        }
+
+        int shown = 0;
+        for (Shower shower : showers) {
+            shown += shower.results.size();
+            if (ASSERT) {
+                assert shower.finished;
+                for (String result : shower.results) {
+                    assert states.contains(result);
+                }
+            }
+        }
+        System.out.println(shown + " show() calls during " + ROTATIONS + " rotations");
+    }
+
+    @Test
+    @Order(908)
+    @DisplayName("Rotation throughput with concurrent show() calls")
+    public void rotation_throughput_with_show() {
+        int SIZE = 10;
+        int ROTATIONS = 200000;
+        try {
+            for (int show_cnt = 0; show_cnt <= 4; show_cnt = Math.max(1, 2 * show_cnt)) {
+                Cube cube = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+                AtomicBoolean stop = new AtomicBoolean(false);
+                ArrayList<Thread> show_threads = new ArrayList<>();
+                for (int i = 0; i < show_cnt; i++) {
+                    show_threads.add(new Thread(new Shower(cube, stop)));
+                }
+                for (Thread show_thread : show_threads) {
+                    show_thread.start();
+                }
+                long rotations_per_second = rotations_per_second(cube, SIZE, ROTATIONS);
+                stop.set(true);
+                for (Thread show_thread : show_threads) {
+                    show_thread.join();
+                }
+                System.out.println(show_cnt + " showing threads: " + rotations_per_second + " rotations/s");
+            }
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw interrupted exception!");
+        }
+    }
+
+    @Test
+    @Order(909)
+    @DisplayName("show() into reused buffers")
+    public void show_into_reused_buffers() {
+        int SIZE = 100;
+        int SHOWS = 2000;
+        com.sun.management.ThreadMXBean thread_bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread_id = Thread.currentThread().getId();
+        Cube cube = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+        ByteBuffer buffer = ByteBuffer.allocate(6 * SIZE * SIZE);
+        StringBuilder builder = new StringBuilder();
+        Random r = new Random();
+
+        try {
+            for (int i = 0; i < 1000; i++) {
+                cube.rotate(r.nextInt(6), r.nextInt(SIZE));
+            }
+            String expected = cube.show();
+            cube.show(buffer);
+            cube.show(builder);
+            if (ASSERT) {
+                assert new String(buffer.array(), StandardCharsets.US_ASCII).equals(expected);
+                assert builder.toString().equals(expected);
+            }
+
+            long allocated_before = thread_bean.getThreadAllocatedBytes(thread_id);
+            for (int i = 0; i < SHOWS; i++) {
+                cube.show();
+            }
+            long allocated_string = thread_bean.getThreadAllocatedBytes(thread_id) - allocated_before;
+
+            allocated_before = thread_bean.getThreadAllocatedBytes(thread_id);
+            for (int i = 0; i < SHOWS; i++) {
+                buffer.clear();
+                cube.show(buffer);
+            }
+            long allocated_buffer = thread_bean.getThreadAllocatedBytes(thread_id) - allocated_before;
+
+            System.out.println("show() allocates " + allocated_string / SHOWS + " bytes, show(ByteBuffer) " +
+                    allocated_buffer / SHOWS + " bytes per call");
+            if (ASSERT) {
+                assert allocated_buffer / SHOWS == 0;
+            }
+        } catch (InterruptedException | IOException e) {
+            System.out.println("TEST " + test_num + " threw exception!");
+        }
+    }
+
+    @Test
+    @Order(910)
+    @DisplayName("Mixed rotate() and show() throughput")
+    public void mixed_rotate_show_throughput() {
+        int SIZE = 50;
+        int OPERATIONS = 100000;
+        try {
+            for (int rotations_per_show = 0; rotations_per_show <= 1000; rotations_per_show = Math.max(1, 10 * rotations_per_show)) {
+                Cube cube = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+                Random r = new Random();
+                long[] operations_per_second = new long[1];
+                for (int repeat = 0; repeat < 2; repeat++) { // the first round is a warm-up
+                    Instant start_time = Clock.systemUTC().instant();
+                    for (int i = 0; i < OPERATIONS; i++) {
+                        if (i % (rotations_per_show + 1) == rotations_per_show) {
+                            cube.show();
+                        } else {
+                            cube.rotate(r.nextInt(6), r.nextInt(SIZE));
+                        }
+                    }
+                    Duration duration = Duration.between(start_time, Clock.systemUTC().instant());
+                    operations_per_second[0] = OPERATIONS * 1_000_000_000L / Math.max(1, duration.toNanos());
+                }
+                System.out.println(rotations_per_show + " rotations per show(): " + operations_per_second[0] + " operations/s");
+            }
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw interrupted exception!");
+        }
+    }
+
+    // random scramble made of runs of rotations of one axis, as produced by solvers and scramblers
+    private static void random_scramble(int size, int[] sides, int[] layers, Random r) {
+        int i = 0;
+        while (i < sides.length) {
+            int side = r.nextInt(6);
+            int run_length = 1 + r.nextInt(2 * size);
+            for (; run_length > 0 && i < sides.length; run_length--, i++) {
+                sides[i] = (r.nextBoolean() ? side : OPPOSITE[side]);
+                layers[i] = r.nextInt(size);
+            }
+        }
+    }
+
+    @Test
+    @Order(1000)
+    @DisplayName("rotateAll() behaves like a sequence of rotate()")
+    public void rotate_all_like_rotate() {
+        int SIZE = 6;
+        int ROTATIONS = 5000;
+        ArrayList<String> events_all = new ArrayList<>();
+        ArrayList<String> events_linear = new ArrayList<>();
+        Cube cube_all = new Cube(SIZE, (side, layer) -> events_all.add("before " + side + " " + layer),
+                (side, layer) -> events_all.add("after " + side + " " + layer), () -> {}, () -> {});
+        Cube cube_linear = new Cube(SIZE, (side, layer) -> events_linear.add("before " + side + " " + layer),
+                (side, layer) -> events_linear.add("after " + side + " " + layer), () -> {}, () -> {});
+        int[] sides = new int[ROTATIONS];
+        int[] layers = new int[ROTATIONS];
+        random_scramble(SIZE, sides, layers, new Random());
+
+        try {
+            cube_all.rotateAll(sides, layers);
+            for (int i = 0; i < ROTATIONS; i++) {
+                cube_linear.rotate(sides[i], layers[i]);
+            }
+            if (ASSERT) {
+                assert cube_all.show().equals(cube_linear.show());
+                assert events_all.equals(events_linear);
+            }
+
+            // a wrong rotation anywhere in the sequence stops it before anything is done
+            String shown = cube_all.show();
+            int events = events_all.size();
+            int refused = 0;
+            try {
+                cube_all.rotateAll(new int[]{0, 7}, new int[]{0, 0});
+            } catch (IllegalArgumentException e) {
+                refused++;
+            }
+            try {
+                cube_all.rotateRange(7, 0, 0);
+            } catch (IllegalArgumentException e) {
+                refused++;
+            }
+            if (ASSERT) {
+                assert refused == 2;
+                assert cube_all.show().equals(shown);
+                assert events_all.size() == events;
+            }
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw interrupted exception!");
+        }
+    }
+
+    @Test
+    @Order(1001)
+    @DisplayName("rotateAll() cost per move")
+    public void rotate_all_cost_per_move() {
+        int SIZE = 10;
+        int ROTATIONS = 1000000;
+        Cube cube_all = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+        Cube cube_linear = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+        int[] sides = new int[ROTATIONS];
+        int[] layers = new int[ROTATIONS];
+        random_scramble(SIZE, sides, layers, new Random());
+
+        try {
+            Duration all_duration = Duration.ZERO;
+            Duration linear_duration = Duration.ZERO;
+            for (int repeat = 0; repeat < 2; repeat++) { // the first round is a warm-up
+                Instant all_start_time = Clock.systemUTC().instant();
+                cube_all.rotateAll(sides, layers);
+                all_duration = Duration.between(all_start_time, Clock.systemUTC().instant());
+
+                Instant linear_start_time = Clock.systemUTC().instant();
+                for (int i = 0; i < ROTATIONS; i++) {
+                    cube_linear.rotate(sides[i], layers[i]);
+                }
+                linear_duration = Duration.between(linear_start_time, Clock.systemUTC().instant());
+            }
+            if (ASSERT) {
+                assert cube_all.show().equals(cube_linear.show());
+            }
+            System.out.println("\nrotateAll() has taken " + all_duration.toNanos() / ROTATIONS + "ns per move, rotate() " +
+                    linear_duration.toNanos() / ROTATIONS + "ns per move");
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw interrupted exception!");
+        }
+    }
+
+    // every thread rotates random layers, the order in which rotations really happened is recorded,
+    // and it is checked that no two axes are ever rotated at the same time
+    private static void check_exclusion(Cube.Options options, int size, int thread_cnt, int rotations) {
+        AtomicIntegerArray rotating = new AtomicIntegerArray(3);
+        AtomicInteger violations = new AtomicInteger(0);
+        List<int[]> history = Collections.synchronizedList(new ArrayList<>());
+        BiConsumer<Integer, Integer> before = (side, layer) -> {
+            int axis = Math.min(side, OPPOSITE[side]);
+            rotating.incrementAndGet(axis);
+            if (rotating.get((axis + 1) % 3) != 0 || rotating.get((axis + 2) % 3) != 0) {
+                violations.incrementAndGet();
+            }
+            history.add(new int[]{side, layer});
+        };
+        BiConsumer<Integer, Integer> after = (side, layer) -> rotating.decrementAndGet(Math.min(side, OPPOSITE[side]));
+        Cube cube = new Cube(size, before, after, () -> {}, () -> {}, options);
+
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < thread_cnt; t++) {
+            Random r = new Random(t);
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < rotations; i++) {
+                        cube.rotate(r.nextInt(6), r.nextInt(size));
+                        if (i % 100 == 0) {
+                            cube.show();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    System.out.println("Thread " + Thread.currentThread().getName() + " : Interrupted when rotating");
+                }
+            }));
+        }
+
+        try {
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            Cube cube_linear = new Cube(size, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+            for (int[] rotation : history) {
+                cube_linear.rotate(rotation[0], rotation[1]);
+            }
+            if (ASSERT) {
+                assert violations.get() == 0;
+                assert history.size() == thread_cnt * rotations;
+                assert cube.show().equals(cube_linear.show());
+            }
+        } catch (InterruptedException e) {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+            System.out.println("Rotor thread interrupted");
+        }
+    }
+
+    @Test
+    @Order(1100)
+    @DisplayName("Schedulers never rotate two axes at once")
+    public void schedulers_exclusion() {
+        for (Cube.Scheduler scheduler : Cube.Scheduler.values()) {
+            check_exclusion(new Cube.Options().scheduler(scheduler), 4, 16, 2000);
+            check_exclusion(new Cube.Options().scheduler(scheduler).batchingWindow(0, TimeUnit.NANOSECONDS), 4, 16, 2000);
+            check_exclusion(new Cube.Options().scheduler(scheduler).starvationBound(1), 4, 16, 2000);
+        }
+    }
+
+    // runs thread_cnt threads rotating random layers, returns rotations per second and the 99th percentile latency
+    private static long[] load(Cube.Options options, BiConsumer<Integer, Integer> work,
+                               int size, int thread_cnt, int rotations) throws InterruptedException {
+        Cube cube = new Cube(size, work, (side, layer) -> {}, () -> {}, () -> {}, options);
+        long[][] latencies = new long[thread_cnt][rotations];
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < thread_cnt; t++) {
+            Random r = new Random(t);
+            long[] thread_latencies = latencies[t];
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < rotations; i++) {
+                        long start = System.nanoTime();
+                        cube.rotate(r.nextInt(6), r.nextInt(size));
+                        thread_latencies[i] = System.nanoTime() - start;
+                    }
+                } catch (InterruptedException e) {
+                    System.out.println("Thread " + Thread.currentThread().getName() + " : Interrupted when rotating");
+                }
+            }));
+        }
+
+        long start_time = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long duration = System.nanoTime() - start_time;
+
+        long[] all_latencies = new long[thread_cnt * rotations];
+        for (int t = 0; t < thread_cnt; t++) {
+            System.arraycopy(latencies[t], 0, all_latencies, t * rotations, rotations);
+        }
+        Arrays.sort(all_latencies);
+        return new long[]{(long) thread_cnt * rotations * 1_000_000_000L / Math.max(1, duration),
+                all_latencies[all_latencies.length * 99 / 100]};
+    }
+
+    @Test
+    @Order(1101)
+    @DisplayName("Scheduler throughput and latency under load")
+    public void scheduler_throughput_and_latency() {
+        int SIZE = 8;
+        int ROTATIONS = 6400;
+        // every rotation waits a bit (for example logs something), so that it is worth running them together
+        BiConsumer<Integer, Integer> work = (side, layer) -> LockSupport.parkNanos(50_000);
+        try {
+            for (int thread_cnt = 4; thread_cnt <= 64; thread_cnt *= 4) {
+                for (Cube.Scheduler scheduler : Cube.Scheduler.values()) {
+                    Cube.Options options = new Cube.Options().scheduler(scheduler);
+                    load(options, work, SIZE, thread_cnt, ROTATIONS / thread_cnt); // warm-up
+                    long[] result = load(options, work, SIZE, thread_cnt, ROTATIONS / thread_cnt);
+                    System.out.println(scheduler + ", " + thread_cnt + " threads: " + result[0] + " rotations/s, p99 " +
+                            result[1] / 1000 + "us");
+                }
+            }
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw interrupted exception!");
+        }
+    }
+
+    @Test
+    @Order(1200)
+    @DisplayName("Lock strategies never rotate two axes at once")
+    public void lock_strategies_exclusion() {
+        for (Cube.LockStrategy strategy : Cube.LockStrategy.values()) {
+            for (Cube.Scheduler scheduler : Cube.Scheduler.values()) {
+                check_exclusion(new Cube.Options().lockStrategy(strategy).scheduler(scheduler), 4, 16, 2000);
+            }
+        }
+    }
+
+    @Test
+    @Order(1201)
+    @DisplayName("Lock strategies throughput")
+    public void lock_strategies_throughput() {
+        int SIZE = 8;
+        int ROTATIONS = 200000;
+        try {
+            for (int thread_cnt = 2; thread_cnt <= 64; thread_cnt *= 2) {
+                for (Cube.LockStrategy strategy : Cube.LockStrategy.values()) {
+                    Cube.Options options = new Cube.Options().lockStrategy(strategy);
+                    load(options, (side, layer) -> {}, SIZE, thread_cnt, ROTATIONS / thread_cnt); // warm-up
+                    long[] result = load(options, (side, layer) -> {}, SIZE, thread_cnt, ROTATIONS / thread_cnt);
+                    System.out.println(strategy + ", " + thread_cnt + " threads: " + result[0] + " rotations/s, p99 " +
+                            result[1] + "ns");
+                }
+            }
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw interrupted exception!");
+        }
+    }
+
+    @Test
+    @Order(1300)
+    @DisplayName("Many outstanding rotateAsync() and showAsync() on a few threads")
+    public void async_many_outstanding() {
+        int SIZE = 5;
+        int ROTATIONS = 20000;
+        int SHOW_EVERY = 100;
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Cube cube_async = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {},
+                new Cube.Options().executor(executor));
+        Cube cube_linear = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+        int[] sides = new int[ROTATIONS];
+        int[] layers = new int[ROTATIONS];
+        random_scramble(SIZE, sides, layers, new Random());
+
+        try {
+            ArrayList<CompletableFuture<Void>> rotations = new ArrayList<>();
+            ArrayList<CompletableFuture<String>> shows = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int i = 0; i < ROTATIONS; i++) {
+                rotations.add(cube_async.rotateAsync(sides[i], layers[i]));
+                if (i % SHOW_EVERY == 0) {
+                    shows.add(cube_async.showAsync());
+                }
+            }
+            long outstanding = rotations.stream().filter(future -> !future.isDone()).count();
+            CompletableFuture.allOf(rotations.toArray(new CompletableFuture<?>[0])).join();
+            CompletableFuture.allOf(shows.toArray(new CompletableFuture<?>[0])).join();
+            long time = System.nanoTime() - start;
+            System.out.println(ROTATIONS + " async rotations (" + outstanding + " outstanding after submitting) in " +
+                    time / 1000000 + "ms");
+
+            // one task carries the operations out in order, so the shows see the states of the sequence
+            for (int i = 0; i < ROTATIONS; i++) {
+                cube_linear.rotate(sides[i], layers[i]);
+                if (ASSERT && i % SHOW_EVERY == 0) {
+                    assert shows.get(i / SHOW_EVERY).join().equals(cube_linear.show());
+                }
+            }
+            if (ASSERT) {
+                assert cube_async.show().equals(cube_linear.show());
+                assert cube_async.rotateAsync(6, 0).isCompletedExceptionally();
+            }
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw interrupted exception!");
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    @Order(1301)
+    @DisplayName("rotateAsync() from many threads at once, every operation carried out exactly once")
+    public void async_concurrent_submitters() {
+        int SIZE = 3;
+        int THREAD_CNT = 4;
+        int ROUNDS = 200;
+        int PER_ROUND = 50;
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        AtomicInteger failures = new AtomicInteger(0);
+        // whatever the drain task throws would be lost in the pool, so it is counted here
+        Executor counting = command -> pool.execute(() -> {
+            try {
+                command.run();
+            } catch (Throwable e) {
+                failures.incrementAndGet();
+                throw e;
+            }
+        });
+        AtomicInteger rotated = new AtomicInteger(0);
+        Cube cube = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> rotated.incrementAndGet(), () -> {}, () -> {},
+                new Cube.Options().executor(counting));
+
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                ArrayList<CompletableFuture<?>> futures = new ArrayList<>();
+                ArrayList<Thread> threads = new ArrayList<>();
+                for (int t = 0; t < THREAD_CNT; t++) {
+                    ArrayList<CompletableFuture<?>> own = new ArrayList<>();
+                    Random random = new Random();
+                    threads.add(new Thread(() -> {
+                        for (int i = 0; i < PER_ROUND; i++) {
+                            own.add(i % 10 == 0 ? cube.showAsync()
+                                    : cube.rotateAsync(random.nextInt(6), random.nextInt(SIZE)));
+                        }
+                        synchronized (futures) {
+                            futures.addAll(own);
+                        }
+                    }));
+                }
+                for (Thread thread : threads) {
+                    thread.start();
+                }
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+            }
+            if (ASSERT) {
+                assert failures.get() == 0;
+                assert rotated.get() == ROUNDS * THREAD_CNT * PER_ROUND * 9 / 10;
+            }
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            System.out.println("TEST " + test_num + " threw " + e);
+            if (ASSERT) {
+                assert false;
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    @Order(1302)
+    @DisplayName("A failing rotateAsync() does not fail the rotations queued after it")
+    public void async_failure_stays_alone() {
+        int SIZE = 3;
+        // the drain task waits here until every operation is queued, so they all go in one run
+        ArrayList<Runnable> tasks = new ArrayList<>();
+        Cube cube = new Cube(SIZE, (side, layer) -> {
+                    if (layer == 1) {
+                        throw new IllegalStateException("callback failed");
+                    }
+                }, (side, layer) -> {}, () -> {}, () -> {},
+                new Cube.Options().executor(tasks::add));
+        Cube expected = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+
+        try {
+            ArrayList<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int layer = 0; layer < SIZE; layer++) {
+                futures.add(cube.rotateAsync(0, layer));
+            }
+            for (int i = 0; i < tasks.size(); i++) {
+                tasks.get(i).run();
+            }
+            expected.rotate(0, 0);
+            expected.rotate(0, 2);
+            if (ASSERT) {
+                assert futures.get(0).isDone() && !futures.get(0).isCompletedExceptionally();
+                assert futures.get(1).isCompletedExceptionally();
+                assert futures.get(2).isDone() && !futures.get(2).isCompletedExceptionally();
+                assert cube.show().equals(expected.show());
+            }
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw " + e);
+        }
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() exists only since Java 21
+    private static ExecutorService virtual_thread_executor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    // every task makes one random rotation of the cube, returns rotations per second
+    private static long drive(Cube.Options options, ExecutorService executor, int size, int task_cnt)
+            throws InterruptedException {
+        Cube cube = new Cube(size, (side, layer) -> LockSupport.parkNanos(20000),
+                (side, layer) -> LockSupport.parkNanos(20000), () -> {}, () -> {}, options);
+        CountDownLatch done = new CountDownLatch(task_cnt);
+        Random random = new Random();
+        long start = System.nanoTime();
+        for (int i = 0; i < task_cnt; i++) {
+            int side = random.nextInt(6);
+            int layer = random.nextInt(size);
+            executor.execute(() -> {
+                try {
+                    cube.rotate(side, layer);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            });
+        }
+        done.await();
+        return task_cnt * 1000000000L / (System.nanoTime() - start);
+    }
+
+    @Test
+    @Order(1400)
+    @DisplayName("Virtual threads against a platform thread pool")
+    public void virtual_threads_throughput() {
+        int SIZE = 8;
+        int TASKS = 100000;
+        ExecutorService platform = Executors.newFixedThreadPool(64);
+        ExecutorService virtual = virtual_thread_executor();
+        try {
+            for (Cube.ThreadMode mode : Cube.ThreadMode.values()) {
+                Cube.Options options = new Cube.Options().threadMode(mode);
+                System.out.println(mode + " mode, 64 platform threads: " + drive(options, platform, SIZE, TASKS) +
+                        " rotations/s");
+                if (virtual != null) {
+                    System.out.println(mode + " mode, virtual thread per task: " + drive(options, virtual, SIZE, TASKS) +
+                            " rotations/s");
+                }
+            }
+            if (virtual == null) {
+                System.out.println("no virtual threads before Java 21, only the platform pool was measured");
+            }
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw interrupted exception!");
+        } finally {
+            platform.shutdown();
+            if (virtual != null) {
+                virtual.shutdown();
+            }
+        }
+    }
+
+    @Test
+    @Order(1500)
+    @DisplayName("Dispatched callbacks come in the order of rotations")
+    public void callback_dispatch_keeps_order() {
+        int SIZE = 6;
+        int ROTATIONS = 20000;
+        int THREAD_CNT = 8;
+        ArrayList<String> events_dispatched = new ArrayList<>();
+        ArrayList<String> events_inline = new ArrayList<>();
+        Cube cube_dispatched = new Cube(SIZE, (side, layer) -> events_dispatched.add("before " + side + " " + layer),
+                (side, layer) -> events_dispatched.add("after " + side + " " + layer), () -> {}, () -> {},
+                new Cube.Options().callbackBuffer(256));
+        Cube cube_inline = new Cube(SIZE, (side, layer) -> events_inline.add("before " + side + " " + layer),
+                (side, layer) -> events_inline.add("after " + side + " " + layer), () -> {}, () -> {});
+        int[] sides = new int[ROTATIONS];
+        int[] layers = new int[ROTATIONS];
+        random_scramble(SIZE, sides, layers, new Random());
+
+        AtomicInteger before_cnt = new AtomicInteger(0);
+        AtomicInteger after_cnt = new AtomicInteger(0);
+        AtomicBoolean after_first = new AtomicBoolean(false);
+        Cube cube_concurrent = new Cube(SIZE, (side, layer) -> before_cnt.incrementAndGet(),
+                (side, layer) -> {
+                    if (after_cnt.incrementAndGet() > before_cnt.get()) {
+                        after_first.set(true);
+                    }
+                }, () -> {}, () -> {}, new Cube.Options().callbackBuffer(256));
+
+        try {
+            for (int i = 0; i < ROTATIONS; i++) {
+                cube_dispatched.rotate(sides[i], layers[i]);
+                cube_inline.rotate(sides[i], layers[i]);
+            }
+            cube_dispatched.awaitCallbacks();
+
+            ArrayList<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < THREAD_CNT; t++) {
+                int first = t;
+                threads.add(new Thread(() -> {
+                    try {
+                        for (int i = first; i < ROTATIONS; i += THREAD_CNT) {
+                            cube_concurrent.rotate(sides[i], layers[i]);
+                        }
+                    } catch (InterruptedException e) {
+                        System.out.println("TEST " + test_num + " threw interrupted exception!");
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            cube_concurrent.awaitCallbacks();
+
+            if (ASSERT) {
+                assert events_dispatched.equals(events_inline);
+                assert before_cnt.get() == ROTATIONS && after_cnt.get() == ROTATIONS;
+                assert !after_first.get();
+            }
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw interrupted exception!");
+        }
+    }
+
+    @Test
+    @Order(1501)
+    @DisplayName("Slow callbacks with and without the dispatcher")
+    public void callback_dispatch_critical_section() {
+        int SIZE = 6;
+        int ROTATIONS = 2000;
+        BiConsumer<Integer, Integer> slow = (side, layer) -> LockSupport.parkNanos(50000);
+        Cube cube_inline = new Cube(SIZE, slow, slow, () -> {}, () -> {});
+        Cube cube_dispatched = new Cube(SIZE, slow, slow, () -> {}, () -> {},
+                new Cube.Options().callbackBuffer(2 * ROTATIONS));
+        int[] sides = new int[ROTATIONS];
+        int[] layers = new int[ROTATIONS];
+        random_scramble(SIZE, sides, layers, new Random());
+
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < ROTATIONS; i++) {
+                cube_inline.rotate(sides[i], layers[i]);
+            }
+            long inline = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ROTATIONS; i++) {
+                cube_dispatched.rotate(sides[i], layers[i]);
+            }
+            long dispatched = System.nanoTime() - start;
+            cube_dispatched.awaitCallbacks();
+            long delivered = System.nanoTime() - start;
+
+            System.out.println("Rotation with 2 x 50us callbacks: inline " + inline / ROTATIONS + "ns, dispatched " +
+                    dispatched / ROTATIONS + "ns (all callbacks done after " + delivered / 1000000 + "ms)");
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw interrupted exception!");
+        }
+    }
+
+    // requests events batch at a time, taking delay nanoseconds for each of them
+    private static class Recorder implements Flow.Subscriber<RotationEvent> {
+        private final int batch;
+        private final long delay;
+        private Flow.Subscription subscription;
+        private int in_batch = 0;
+        private final AtomicLong received = new AtomicLong(0);
+        private final AtomicLong missed = new AtomicLong(0);
+        private final Set<Long> sequences = Collections.synchronizedSet(new HashSet<>());
+
+        Recorder(int batch, long delay) {
+            this.batch = batch;
+            this.delay = delay;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(batch);
+        }
+
+        @Override
+        public void onNext(RotationEvent event) {
+            sequences.add(event.sequence());
+            missed.addAndGet(event.missed());
+            received.incrementAndGet();
+            if (delay > 0) {
+                LockSupport.parkNanos(delay);
+            }
+            if (++in_batch == batch) {
+                in_batch = 0;
+                subscription.request(batch);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            System.out.println("Subscriber got " + throwable);
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+
+    // rotations per second of thread_cnt threads, every one making rotations random rotations
+    private static long rotate_randomly(Cube cube, int size, int thread_cnt, int rotations) throws InterruptedException {
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < thread_cnt; t++) {
+            threads.add(new Thread(() -> {
+                Random random = new Random();
+                try {
+                    for (int i = 0; i < rotations; i++) {
+                        cube.rotate(random.nextInt(6), random.nextInt(size));
+                    }
+                } catch (InterruptedException e) {
+                    System.out.println("TEST " + test_num + " threw interrupted exception!");
+                }
+            }));
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return (long) thread_cnt * rotations * 1000000000L / (System.nanoTime() - start);
+    }
+
+    @Test
+    @Order(1600)
+    @DisplayName("Rotation events for subscribers of different speeds")
+    public void rotation_events_subscribers() {
+        int SIZE = 5;
+        int THREAD_CNT = 4;
+        int ROTATIONS = 25000;
+        int TOTAL = THREAD_CNT * ROTATIONS;
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        Cube.Options options = new Cube.Options().executor(executor);
+        try {
+            Cube plain = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {}, options);
+            rotate_randomly(plain, SIZE, THREAD_CNT, ROTATIONS); // warm-up
+            long without = rotate_randomly(plain, SIZE, THREAD_CNT, ROTATIONS);
+
+            Cube cube = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {}, options);
+            Recorder fast = new Recorder(Integer.MAX_VALUE, 0);
+            Recorder blocking = new Recorder(16, 0);
+            Recorder dropping = new Recorder(1, 100000);
+            Recorder conflating = new Recorder(8, 100000);
+            cube.rotationEvents(Cube.Overflow.BLOCK, 1 << 20).subscribe(fast);
+            cube.rotationEvents(Cube.Overflow.BLOCK, 64).subscribe(blocking);
+            cube.rotationEvents(Cube.Overflow.DROP, 64).subscribe(dropping);
+            cube.rotationEvents(Cube.Overflow.CONFLATE, 64).subscribe(conflating);
+            long with = rotate_randomly(cube, SIZE, THREAD_CNT, ROTATIONS);
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while ((fast.received.get() < TOTAL || blocking.received.get() < TOTAL) && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            System.out.println("Rotations/s without subscribers " + without + ", with 4 subscribers " + with);
+            System.out.println("DROP got " + dropping.received.get() + " (" + dropping.missed.get() + " missed), " +
+                    "CONFLATE got " + conflating.received.get() + " (" + conflating.missed.get() + " missed)");
+
+            if (ASSERT) {
+                assert fast.received.get() == TOTAL && fast.sequences.size() == TOTAL;
+                assert blocking.received.get() == TOTAL && blocking.missed.get() == 0;
+                assert dropping.received.get() > 0 && dropping.received.get() + dropping.missed.get() <= TOTAL;
+                assert conflating.received.get() > 0 && conflating.received.get() + conflating.missed.get() <= TOTAL;
+            }
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw interrupted exception!");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    @Order(1601)
+    @DisplayName("A rotation waiting for a BLOCK subscriber that takes nothing can be interrupted")
+    public void rotation_events_block_interruptible() {
+        int SIZE = 3;
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        try {
+            Cube cube = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {},
+                    new Cube.Options().executor(executor));
+            AtomicReference<Flow.Subscription> subscription = new AtomicReference<>();
+            cube.rotationEvents(Cube.Overflow.BLOCK, 1).subscribe(new Flow.Subscriber<RotationEvent>() {
+                @Override
+                public void onSubscribe(Flow.Subscription s) {
+                    subscription.set(s); // and never requests anything
+                }
+
+                @Override
+                public void onNext(RotationEvent event) {
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                }
+
+                @Override
+                public void onComplete() {
+                }
+            });
+
+            AtomicInteger rotated = new AtomicInteger(0);
+            AtomicBoolean interrupted = new AtomicBoolean(false);
+            Thread rotating = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 10; i++) {
+                        cube.rotate(0, 0);
+                        rotated.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    interrupted.set(true);
+                }
+            });
+            rotating.start();
+            // the first event fills the buffer, the second rotation waits for a place
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (rotated.get() < 1 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(100);
+            int before_interrupt = rotated.get();
+            rotating.interrupt();
+            rotating.join(TimeUnit.SECONDS.toMillis(10));
+            boolean stuck = rotating.isAlive();
+
+            // with the subscriber gone, nobody else waits either
+            subscription.get().cancel();
+            cube.rotate(1, 0);
+            if (ASSERT) {
+                assert before_interrupt == 1;
+                assert !stuck;
+                assert interrupted.get();
+            }
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw " + e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // remembers which threads have signalled it and whether any signals overlapped
+    private static class Signals implements Flow.Subscriber<RotationEvent> {
+        private Flow.Subscription subscription;
+        private final AtomicInteger inside = new AtomicInteger(0);
+        private final AtomicInteger overlaps = new AtomicInteger(0);
+        private final AtomicInteger events = new AtomicInteger(0);
+        private final AtomicInteger errors = new AtomicInteger(0);
+        private final AtomicInteger completions = new AtomicInteger(0);
+        private final AtomicInteger after_end = new AtomicInteger(0);
+        private final Set<Thread> threads = Collections.synchronizedSet(new HashSet<>());
+        private final CountDownLatch ended = new CountDownLatch(1);
+
+        private void signal(Runnable what) {
+            if (inside.incrementAndGet() != 1) {
+                overlaps.incrementAndGet();
+            }
+            threads.add(Thread.currentThread());
+            if (ended.getCount() == 0) {
+                after_end.incrementAndGet();
+            }
+            what.run();
+            inside.decrementAndGet();
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(RotationEvent event) {
+            signal(() -> {
+                events.incrementAndGet();
+                LockSupport.parkNanos(1000);
+            });
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            signal(() -> {
+                errors.incrementAndGet();
+                ended.countDown();
+            });
+        }
+
+        @Override
+        public void onComplete() {
+            signal(() -> {
+                completions.incrementAndGet();
+                ended.countDown();
+            });
+        }
+    }
+
+    @Test
+    @Order(1602)
+    @DisplayName("Subscribers are signalled one at a time from the executor, and completed when the cube is closed")
+    public void rotation_events_error_and_completion() {
+        int SIZE = 3;
+        int ROTATIONS = 1000;
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Cube cube = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {},
+                    new Cube.Options().executor(executor));
+            Signals failing = new Signals();
+            Signals completed = new Signals();
+            cube.rotationEvents(Cube.Overflow.BLOCK, 16).subscribe(failing);
+            cube.rotationEvents(Cube.Overflow.BLOCK, ROTATIONS).subscribe(completed);
+            Random random = new Random();
+            for (int i = 0; i < ROTATIONS; i++) {
+                cube.rotate(random.nextInt(6), random.nextInt(SIZE));
+                if (i == ROTATIONS / 2) {
+                    failing.subscription.request(0); // while the events are being passed on
+                }
+            }
+            cube.close();
+            cube.rotate(0, 0); // after the end, not passed on
+            Signals late = new Signals();
+            cube.rotationEvents(Cube.Overflow.BLOCK, 16).subscribe(late);
+
+            boolean all_ended = failing.ended.await(10, TimeUnit.SECONDS) && completed.ended.await(10, TimeUnit.SECONDS)
+                    && late.ended.await(10, TimeUnit.SECONDS);
+            Thread.sleep(100);
+            if (ASSERT) {
+                assert all_ended;
+                assert failing.errors.get() == 1 && failing.completions.get() == 0;
+                assert !failing.threads.contains(Thread.currentThread());
+                assert completed.errors.get() == 0 && completed.completions.get() == 1;
+                assert completed.events.get() == ROTATIONS;
+                assert late.completions.get() == 1 && late.events.get() == 0;
+                for (Signals signals : new Signals[]{failing, completed, late}) {
+                    assert signals.overlaps.get() == 0;
+                    assert signals.after_end.get() == 0;
+                }
+            }
+        } catch (InterruptedException | IOException e) {
+            System.out.println("TEST " + test_num + " threw " + e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // a scramble as a person would make it: whole moves of the outer layers, never the same axis twice in a row
+    private static void real_scramble(int size, int[] sides, int[] layers, Random r) {
+        int previous = -1;
+        for (int i = 0; i < sides.length; i++) {
+            int side;
+            do {
+                side = r.nextInt(6);
+            } while (previous != -1 && (side == previous || side == OPPOSITE[previous]));
+            previous = side;
+            sides[i] = side;
+            layers[i] = (size > 2 && r.nextInt(4) == 0 ? 1 : 0);
+        }
+    }
+
+    // a sequence followed by what undoes it, with every undoing move written as three quarter turns
+    // or as the same layer turned from the other side
+    private static int[][] there_and_back(int size, int[] sides, int[] layers, Random r) {
+        ArrayList<int[]> moves = new ArrayList<>();
+        for (int i = 0; i < sides.length; i++) {
+            moves.add(new int[]{sides[i], layers[i]});
+        }
+        for (int i = sides.length - 1; i >= 0; i--) {
+            if (r.nextBoolean()) {
+                moves.add(new int[]{OPPOSITE[sides[i]], size - layers[i] - 1});
+            } else {
+                for (int q = 0; q < 3; q++) {
+                    moves.add(new int[]{sides[i], layers[i]});
+                }
+            }
+        }
+        int[][] result = new int[2][moves.size()];
+        for (int i = 0; i < moves.size(); i++) {
+            result[0][i] = moves.get(i)[0];
+            result[1][i] = moves.get(i)[1];
+        }
+        return result;
+    }
+
+    @Test
+    @Order(1700)
+    @DisplayName("rotateAllOptimized() leaves the cube as rotateAll() does")
+    public void rotate_all_optimized_like_rotate_all() {
+        int ROTATIONS = 3000;
+        Random random = new Random();
+        try {
+            for (int size = 1; size <= 6; size++) {
+                int[] sides = new int[ROTATIONS];
+                int[] layers = new int[ROTATIONS];
+                random_scramble(size, sides, layers, random);
+                int[][] undone = there_and_back(size, Arrays.copyOf(sides, 100), Arrays.copyOf(layers, 100), random);
+
+                Cube cube_optimized = new Cube(size, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+                Cube cube_all = new Cube(size, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+                String solved = cube_all.show();
+                int saved = cube_optimized.rotateAllOptimized(sides, layers);
+                cube_all.rotateAll(sides, layers);
+                if (ASSERT) {
+                    assert saved >= 0;
+                    assert cube_optimized.show().equals(cube_all.show());
+                }
+
+                Cube cube_undone = new Cube(size, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+                saved = cube_undone.rotateAllOptimized(undone[0], undone[1]);
+                if (ASSERT) {
+                    assert cube_undone.show().equals(solved);
+                }
+
+                // no axis twice in a row, nothing to normalize
+                real_scramble(size, sides, layers, random);
+                saved = cube_optimized.rotateAllOptimized(sides, layers);
+                cube_all.rotateAll(sides, layers);
+                if (ASSERT) {
+                    assert saved == 0;
+                    assert cube_optimized.show().equals(cube_all.show());
+                }
+            }
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw interrupted exception!");
+        }
+    }
+
+    @Test
+    @Order(1701)
+    @DisplayName("Rotations saved by rotateAllOptimized()")
+    public void rotate_all_optimized_savings() {
+        int SIZE = 10;
+        int ROTATIONS = 200000;
+        Random random = new Random();
+        int[] sides = new int[ROTATIONS];
+        int[] layers = new int[ROTATIONS];
+        try {
+            for (String kind : new String[]{"random", "real", "there and back"}) {
+                int[] kind_sides = sides;
+                int[] kind_layers = layers;
+                if (kind.equals("random")) {
+                    random_scramble(SIZE, sides, layers, random);
+                } else if (kind.equals("real")) {
+                    real_scramble(SIZE, sides, layers, random);
+                } else {
+                    int[][] undone = there_and_back(SIZE, Arrays.copyOf(sides, ROTATIONS / 4),
+                            Arrays.copyOf(layers, ROTATIONS / 4), random);
+                    kind_sides = undone[0];
+                    kind_layers = undone[1];
+                }
+
+                Cube cube_all = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+                Cube cube_optimized = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+                cube_all.rotateAll(kind_sides, kind_layers); // warm-up
+                cube_optimized.rotateAllOptimized(kind_sides, kind_layers);
+
+                long start = System.nanoTime();
+                cube_all.rotateAll(kind_sides, kind_layers);
+                long all = System.nanoTime() - start;
+                start = System.nanoTime();
+                int saved = cube_optimized.rotateAllOptimized(kind_sides, kind_layers);
+                long optimized = System.nanoTime() - start;
+
+                System.out.println(kind + ": " + saved + " of " + kind_sides.length + " rotations saved, rotateAll " +
+                        all / 1000000 + "ms, rotateAllOptimized " + optimized / 1000000 + "ms");
+            }
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw interrupted exception!");
+        }
+    }
+
+    @Test
+    @Order(1800)
+    @DisplayName("reorient() leaves the cube as rotating every layer does")
+    public void reorient_like_rotating_all_layers() {
+        int ROTATIONS = 500;
+        Random random = new Random();
+        try {
+            for (int size = 1; size <= 6; size++) {
+                int[] sides = new int[ROTATIONS];
+                int[] layers = new int[ROTATIONS];
+                random_scramble(size, sides, layers, random);
+                Cube cube_reoriented = new Cube(size, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+                Cube cube_rotated = new Cube(size, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+                cube_reoriented.rotateAll(sides, layers);
+                cube_rotated.rotateAll(sides, layers);
+
+                for (int side = 0; side < 6; side++) {
+                    for (Cube.Direction direction : Cube.Direction.values()) {
+                        cube_reoriented.reorient(side, direction);
+                        for (int layer = 0; layer < size; layer++) {
+                            if (direction == Cube.Direction.CLOCKWISE) {
+                                cube_rotated.rotate(side, layer);
+                            } else {
+                                cube_rotated.rotate(OPPOSITE[side], layer);
+                            }
+                        }
+                        if (ASSERT) {
+                            assert cube_reoriented.show().equals(cube_rotated.show());
+                        }
+
+                        // the rotations after it still find their pieces
+                        random_scramble(size, sides, layers, random);
+                        cube_reoriented.rotateAll(sides, layers);
+                        cube_rotated.rotateAll(sides, layers);
+                        if (ASSERT) {
+                            assert cube_reoriented.show().equals(cube_rotated.show());
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw interrupted exception!");
+        }
+    }
+
+    // the face of shown (a cube of the given size) turned clockwise quarters times, as show() would draw it then
+    private static String turned_face(String shown, int size, int face, int quarters) {
+        char[] turned = shown.substring(face * size * size, (face + 1) * size * size).toCharArray();
+        for (int q = 0; q < quarters; q++) {
+            char[] before = turned.clone();
+            for (int row = 0; row < size; row++) {
+                for (int col = 0; col < size; col++) {
+                    turned[row * size + col] = before[(size - col - 1) * size + row];
+                }
+            }
+        }
+        return new String(turned);
+    }
+
+    @Test
+    @Order(1802)
+    @DisplayName("The tables of reorient() are what rotating every layer does to the faces")
+    public void reorient_tables_probed() {
+        int SIZE = 3;
+        int TRIALS = 10;
+        int ROTATIONS = 200;
+        Random random = new Random();
+        try {
+            for (int side = 0; side < 6; side++) {
+                // which face, turned how many times, may have come to the place of every face
+                boolean[][][] possible = new boolean[6][6][4];
+                for (boolean[][] face : possible) {
+                    for (boolean[] from : face) {
+                        Arrays.fill(from, true);
+                    }
+                }
+                for (int trial = 0; trial < TRIALS; trial++) {
+                    int[] sides = new int[ROTATIONS];
+                    int[] layers = new int[ROTATIONS];
+                    random_scramble(SIZE, sides, layers, random);
+                    Cube cube = new Cube(SIZE, (s, l) -> {}, (s, l) -> {}, () -> {}, () -> {});
+                    cube.rotateAll(sides, layers);
+                    String before = cube.show();
+                    for (int layer = 0; layer < SIZE; layer++) {
+                        cube.rotate(side, layer);
+                    }
+                    String after = cube.show();
+                    for (int face = 0; face < 6; face++) {
+                        String seen = turned_face(after, SIZE, face, 0);
+                        for (int from = 0; from < 6; from++) {
+                            for (int q = 0; q < 4; q++) {
+                                possible[face][from][q] &= seen.equals(turned_face(before, SIZE, from, q));
+                            }
+                        }
+                    }
+                }
+
+                for (int face = 0; face < 6; face++) {
+                    int found = 0;
+                    for (int from = 0; from < 6; from++) {
+                        for (int q = 0; q < 4; q++) {
+                            if (possible[face][from][q]) {
+                                found++;
+                                if (ASSERT) {
+                                    assert from == Cube.reoriented_from[side][face];
+                                    assert q == Cube.reoriented_spins[side][face];
+                                }
+                            }
+                        }
+                    }
+                    if (ASSERT) {
+                        assert found == 1;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw " + e);
+        }
+    }
+
+    @Test
+    @Order(1803)
+    @DisplayName("reorient() and restore() wait for a rotation in progress, and rotations wait for them")
+    public void whole_cube_waits_for_rotations() {
+        int SIZE = 50;
+        for (Cube.Scheduler scheduler : Cube.Scheduler.values()) {
+            try {
+                CountDownLatch rotating = new CountDownLatch(1);
+                CountDownLatch release = new CountDownLatch(1);
+                Cube cube = new Cube(SIZE, (side, layer) -> {
+                            rotating.countDown();
+                            try {
+                                release.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }, (side, layer) -> {}, () -> {}, () -> {},
+                        new Cube.Options().scheduler(scheduler));
+                Cube expected = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+                ByteBuffer scrambled = ByteBuffer.allocate(expected.snapshotSize());
+                expected.rotate(2, 7);
+                expected.snapshot(scrambled);
+                scrambled.flip();
+
+                Thread rotation = new Thread(() -> {
+                    try {
+                        cube.rotate(0, 3);
+                    } catch (InterruptedException e) {
+                        System.out.println("TEST " + test_num + " rotation threw " + e);
+                    }
+                });
+                rotation.start();
+                rotating.await();
+
+                AtomicInteger whole_done = new AtomicInteger(0);
+                Thread whole = new Thread(() -> {
+                    try {
+                        cube.reorient(1, Cube.Direction.CLOCKWISE);
+                        whole_done.incrementAndGet();
+                        cube.restore(scrambled);
+                        whole_done.incrementAndGet();
+                    } catch (InterruptedException e) {
+                        System.out.println("TEST " + test_num + " whole cube threw " + e);
+                    }
+                });
+                whole.start();
+                Thread.sleep(100);
+                int done_while_rotating = whole_done.get();
+                release.countDown();
+                rotation.join();
+                whole.join();
+                // restore() came after the rotation, so nothing of it is left
+                boolean restored = cube.show().equals(expected.show());
+                cube.rotate(0, 3);
+                expected.rotate(0, 3);
+                if (ASSERT) {
+                    assert done_while_rotating == 0;
+                    assert whole_done.get() == 2;
+                    assert restored;
+                    assert cube.show().equals(expected.show());
+                }
+            } catch (InterruptedException e) {
+                System.out.println("TEST " + test_num + " threw " + e);
+            }
+        }
+    }
+
+    @Test
+    @Order(1804)
+    @DisplayName("Subscribers are told they have missed the changes of the whole cube that are not rotations")
+    public void whole_cube_changes_mark_events_missed() {
+        int SIZE = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        ForkJoinPool pool = new ForkJoinPool(4); // so that a long sequence is compiled into a permutation
+        try {
+            Cube cube = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {},
+                    new Cube.Options().executor(executor).pool(pool));
+            Recorder recorder = new Recorder(Integer.MAX_VALUE, 0);
+            cube.rotationEvents(Cube.Overflow.BLOCK, 64).subscribe(recorder);
+
+            cube.rotate(0, 0);
+            cube.reorient(1, Cube.Direction.CLOCKWISE);
+            cube.rotate(0, 0);
+            ByteBuffer snapshot = ByteBuffer.allocate(cube.snapshotSize());
+            cube.snapshot(snapshot);
+            snapshot.flip();
+            cube.restore(snapshot);
+            cube.rotate(0, 0);
+            cube.applySequence(new int[]{1, 2, 3}, new int[]{0, 1, 2});
+            cube.rotate(0, 0);
+            int[] sides = new int[1000];
+            int[] layers = new int[1000];
+            random_scramble(SIZE, sides, layers, new Random());
+            cube.applySequence(sides, layers);
+            cube.rotate(0, 0);
+            int EXPECTED = 5;
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (recorder.received.get() < EXPECTED && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            if (ASSERT) {
+                assert recorder.received.get() == EXPECTED;
+                assert recorder.missed.get() == EXPECTED - 1;
+            }
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw " + e);
+        } finally {
+            executor.shutdownNow();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    @Order(1801)
+    @DisplayName("reorient() against rotating every layer")
+    public void reorient_cost() {
+        try {
+            for (int size = 10; size <= 1000; size *= 10) {
+                Cube cube = new Cube(size, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+                int TURNS = 100;
+                long start = System.nanoTime();
+                for (int i = 0; i < TURNS; i++) {
+                    for (int layer = 0; layer < size; layer++) {
+                        cube.rotate(i % 6, layer);
+                    }
+                }
+                long rotated = (System.nanoTime() - start) / TURNS;
+                start = System.nanoTime();
+                for (int i = 0; i < TURNS; i++) {
+                    cube.reorient(i % 6, Cube.Direction.CLOCKWISE);
+                }
+                long reoriented = (System.nanoTime() - start) / TURNS;
+                System.out.println("Whole cube turn, size " + size + ": rotating every layer " + rotated + "ns, reorient() " +
+                        reoriented + "ns");
+            }
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw interrupted exception!");
+        }
+    }
+
+    @Test
+    @Order(1900)
+    @DisplayName("rotateRange() leaves the cube as rotating the layers one by one does")
+    public void rotate_range_like_rotations() {
+        int RANGES = 300;
+        Random random = new Random();
+        try {
+            for (int size = 1; size <= 7; size++) {
+                ArrayList<String> events_range = new ArrayList<>();
+                ArrayList<String> events_single = new ArrayList<>();
+                Cube cube_range = new Cube(size, (side, layer) -> events_range.add("before " + side + " " + layer),
+                        (side, layer) -> events_range.add("after " + side + " " + layer), () -> {}, () -> {});
+                Cube cube_single = new Cube(size, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+                for (int i = 0; i < RANGES; i++) {
+                    int side = random.nextInt(6);
+                    int from = random.nextInt(size);
+                    int to = from + random.nextInt(size - from);
+                    cube_range.rotateRange(side, from, to);
+                    for (int layer = from; layer <= to; layer++) {
+                        events_single.add("before " + side + " " + layer);
+                    }
+                    for (int layer = from; layer <= to; layer++) {
+                        cube_single.rotate(side, layer);
+                        events_single.add("after " + side + " " + layer);
+                    }
+                }
+                if (ASSERT) {
+                    assert cube_range.show().equals(cube_single.show());
+                    assert events_range.equals(events_single);
+                }
+            }
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw interrupted exception!");
+        }
+    }
+
+    @Test
+    @Order(1901)
+    @DisplayName("Nobody sees a rotateRange() half done")
+    public void rotate_range_is_atomic() {
+        int SIZE = 6;
+        int THREAD_CNT = 4;
+        int RANGES = 2000;
+        Cube cube = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+        AtomicBoolean half_done = new AtomicBoolean(false);
+        AtomicBoolean stop = new AtomicBoolean(false);
+
+        // turning every layer turns the whole cube, so every face of the solved cube stays of one color
+        Thread shower = new Thread(() -> {
+            try {
+                while (!stop.get()) {
+                    String shown = cube.show();
+                    for (int face = 0; face < 6; face++) {
+                        for (int i = 1; i < SIZE * SIZE; i++) {
+                            if (shown.charAt(face * SIZE * SIZE + i) != shown.charAt(face * SIZE * SIZE)) {
+                                half_done.set(true);
+                            }
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                System.out.println("TEST " + test_num + " threw interrupted exception!");
+            }
+        });
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREAD_CNT; t++) {
+            threads.add(new Thread(() -> {
+                Random random = new Random();
+                try {
+                    for (int i = 0; i < RANGES; i++) {
+                        cube.rotateRange(random.nextInt(6), 0, SIZE - 1);
+                    }
+                } catch (InterruptedException e) {
+                    System.out.println("TEST " + test_num + " threw interrupted exception!");
+                }
+            }));
+        }
+
+        try {
+            shower.start();
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            stop.set(true);
+            shower.join();
+            if (ASSERT) {
+                assert !half_done.get();
+            }
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw interrupted exception!");
+        }
+    }
+
+    @Test
+    @Order(1902)
+    @DisplayName("rotateRange() against rotating the layers one by one")
+    public void rotate_range_cost() {
+        Random random = new Random();
+        try {
+            for (int size = 4; size <= 256; size *= 4) {
+                Cube cube = new Cube(size, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+                int width = size / 2;
+                int ROTATIONS = 100000 / size;
+                for (int round = 0; round < 2; round++) { // the first one is a warm-up
+                    long start = System.nanoTime();
+                    for (int i = 0; i < ROTATIONS; i++) {
+                        int side = random.nextInt(6);
+                        for (int layer = 0; layer < width; layer++) {
+                            cube.rotate(side, layer);
+                        }
+                    }
+                    long single = (System.nanoTime() - start) / ROTATIONS;
+                    start = System.nanoTime();
+                    for (int i = 0; i < ROTATIONS; i++) {
+                        cube.rotateRange(random.nextInt(6), 0, width - 1);
+                    }
+                    long range = (System.nanoTime() - start) / ROTATIONS;
+                    if (round == 1) {
+                        System.out.println("Size " + size + ", " + width + " layers: one by one " + single +
+                                "ns, rotateRange " + range + "ns");
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw interrupted exception!");
+        }
+    }
+
+    @Test
+    @Order(2000)
+    @DisplayName("stateHash() is the hash of what show() shows")
+    public void state_hash_like_from_scratch() {
+        int STEPS = 300;
+        Random random = new Random();
+        try {
+            for (int size = 1; size <= 6; size++) {
+                Cube hashing = new Cube(size, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {},
+                        new Cube.Options().stateHash(true));
+                // asking plain for its hash must not look like showing it
+                AtomicInteger shows = new AtomicInteger(0);
+                Cube plain = new Cube(size, (side, layer) -> {}, (side, layer) -> {}, shows::incrementAndGet,
+                        shows::incrementAndGet);
+                HashSet<Long> hashes = new HashSet<>();
+                HashSet<String> states = new HashSet<>();
+                for (int i = 0; i < STEPS; i++) {
+                    int side = random.nextInt(6);
+                    int layer = random.nextInt(size);
+                    int kind = random.nextInt(4);
+                    for (Cube cube : new Cube[]{hashing, plain}) {
+                        if (kind == 0) {
+                            cube.rotateRange(side, layer, size - 1);
+                        } else if (kind == 1) {
+                            cube.reorient(side, Cube.Direction.COUNTER_CLOCKWISE);
+                        } else {
+                            cube.rotate(side, layer);
+                        }
+                    }
+                    String shown = hashing.show();
+                    long hash = hashing.stateHash();
+                    hashes.add(hash);
+                    states.add(shown);
+                    if (ASSERT) {
+                        assert hash == Cube.hashOf(size, shown);
+                        assert hash == plain.stateHash();
+                    }
+                }
+                if (ASSERT) {
+                    assert hashes.size() == states.size();
+                    assert shows.get() == 0;
+                }
+            }
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw interrupted exception!");
+        }
+    }
+
+    @Test
+    @Order(2001)
+    @DisplayName("Cost of keeping the state hash")
+    public void state_hash_cost() {
+        try {
+            for (int size = 10; size <= 1000; size *= 10) {
+                int rotations = 2000000 / size;
+                Cube plain = new Cube(size, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+                Cube hashing = new Cube(size, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {},
+                        new Cube.Options().stateHash(true));
+                rotations_per_second(plain, size, rotations); // warm-up
+                rotations_per_second(hashing, size, rotations);
+                long without = rotations_per_second(plain, size, rotations);
+                long with = rotations_per_second(hashing, size, rotations);
+
+                long start = System.nanoTime();
+                long kept = hashing.stateHash();
+                long kept_time = System.nanoTime() - start;
+                start = System.nanoTime();
+                long from_scratch = Cube.hashOf(size, hashing.show());
+                long scratch_time = System.nanoTime() - start;
+                if (ASSERT) {
+                    assert kept == from_scratch;
+                }
+                System.out.println("Size " + size + ": " + without + " rotations/s, " + with + " keeping the hash; " +
+                        "stateHash() " + kept_time + "ns, hash of show() " + scratch_time + "ns");
+            }
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw interrupted exception!");
+        }
+    }
+
+    @Test
+    @Order(2100)
+    @DisplayName("restore() brings back what snapshot() has taken")
+    public void snapshot_restore_round_trip() {
+        int ROTATIONS = 1000;
+        Random random = new Random();
+        try {
+            for (int size = 1; size <= 7; size++) {
+                int[] sides = new int[ROTATIONS];
+                int[] layers = new int[ROTATIONS];
+                random_scramble(size, sides, layers, random);
+                Cube cube = new Cube(size, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+                cube.rotateAll(sides, layers);
+                ByteBuffer snapshot = ByteBuffer.allocate(cube.snapshotSize());
+                cube.snapshot(snapshot);
+                if (ASSERT) {
+                    assert !snapshot.hasRemaining();
+                }
+                snapshot.flip();
+
+                Cube restored = new Cube(size, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {},
+                        new Cube.Options().stateHash(true));
+                restored.restore(snapshot);
+                if (ASSERT) {
+                    assert restored.show().equals(cube.show());
+                    assert restored.stateHash() == cube.stateHash();
+                }
+
+                // and it goes on rotating like the original
+                random_scramble(size, sides, layers, random);
+                cube.rotateAll(sides, layers);
+                restored.rotateAll(sides, layers);
+                if (ASSERT) {
+                    assert restored.show().equals(cube.show());
+                    assert restored.stateHash() == cube.stateHash();
+                }
+            }
+
+            Path file = Files.createTempFile("cube", ".snapshot");
+            try {
+                Cube cube = new Cube(5, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+                cube.rotateRange(2, 1, 3);
+                cube.snapshot(file);
+                Cube restored = new Cube(5, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+                restored.restore(file);
+                Cube other_size = new Cube(4, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+                boolean refused = false;
+                try {
+                    other_size.restore(file);
+                } catch (IllegalArgumentException e) {
+                    refused = true;
+                }
+                if (ASSERT) {
+                    assert restored.show().equals(cube.show());
+                    assert refused;
+                }
+            } finally {
+                Files.delete(file);
+            }
+        } catch (InterruptedException | IOException e) {
+            System.out.println("TEST " + test_num + " threw " + e);
+        }
+    }
+
+    @Test
+    @Order(2101)
+    @DisplayName("snapshot() never takes a rotation half done")
+    public void snapshot_is_consistent() {
+        int SIZE = 6;
+        int THREAD_CNT = 4;
+        int RANGES = 2000;
+        Cube cube = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+        AtomicBoolean half_done = new AtomicBoolean(false);
+        AtomicBoolean stop = new AtomicBoolean(false);
+
+        // as in rotate_range_is_atomic, every face of a consistent state has one color
+        Thread snapshotter = new Thread(() -> {
+            Cube restored = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+            ByteBuffer snapshot = ByteBuffer.allocate(cube.snapshotSize());
+            try {
+                while (!stop.get()) {
+                    snapshot.clear();
+                    cube.snapshot(snapshot);
+                    snapshot.flip();
+                    restored.restore(snapshot);
+                    String shown = restored.show();
+                    for (int face = 0; face < 6; face++) {
+                        for (int i = 1; i < SIZE * SIZE; i++) {
+                            if (shown.charAt(face * SIZE * SIZE + i) != shown.charAt(face * SIZE * SIZE)) {
+                                half_done.set(true);
+                            }
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                System.out.println("TEST " + test_num + " threw interrupted exception!");
+            }
+        });
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREAD_CNT; t++) {
+            threads.add(new Thread(() -> {
+                Random random = new Random();
+                try {
+                    for (int i = 0; i < RANGES; i++) {
+                        cube.rotateRange(random.nextInt(6), 0, SIZE - 1);
+                    }
+                } catch (InterruptedException e) {
+                    System.out.println("TEST " + test_num + " threw interrupted exception!");
+                }
+            }));
+        }
+
+        try {
+            snapshotter.start();
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            stop.set(true);
+            snapshotter.join();
+            if (ASSERT) {
+                assert !half_done.get();
+            }
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw interrupted exception!");
+        }
+    }
+
+    @Test
+    @Order(2102)
+    @DisplayName("Snapshot of a 1000x1000 cube against show()")
+    public void snapshot_large_cube() {
+        int SIZE = 1000;
+        Cube cube = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+        Cube restored = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+        try {
+            Path file = Files.createTempFile("cube", ".snapshot");
+            try {
+                Random random = new Random();
+                for (int i = 0; i < 1000; i++) {
+                    cube.rotate(random.nextInt(6), random.nextInt(SIZE));
+                }
+                for (int round = 0; round < 5; round++) { // the first ones are a warm-up
+                    long start = System.nanoTime();
+                    cube.snapshot(file);
+                    long checkpoint = System.nanoTime() - start;
+                    start = System.nanoTime();
+                    restored.restore(file);
+                    long restore = System.nanoTime() - start;
+                    ByteBuffer memory = ByteBuffer.allocate(cube.snapshotSize());
+                    start = System.nanoTime();
+                    cube.snapshot(memory);
+                    long checkpoint_memory = System.nanoTime() - start;
+                    memory.flip();
+                    start = System.nanoTime();
+                    restored.restore(memory);
+                    long restore_memory = System.nanoTime() - start;
+                    start = System.nanoTime();
+                    String shown = cube.show();
+                    long show = System.nanoTime() - start;
+                    if (round == 4) {
+                        System.out.println("Size " + SIZE + ": snapshot " + Files.size(file) + " bytes, " +
+                                checkpoint / 1000000 + "ms to file, " + restore / 1000000 + "ms back (in memory " +
+                                checkpoint_memory / 1000000 + "ms and " + restore_memory / 1000000 + "ms); show() " +
+                                shown.length() + " characters, " + show / 1000000 + "ms");
+                    }
+                    if (ASSERT) {
+                        assert restored.show().equals(shown);
+                    }
+                }
+            } finally {
+                Files.delete(file);
+            }
+        } catch (InterruptedException | IOException e) {
+            System.out.println("TEST " + test_num + " threw " + e);
+        }
+    }
+
+    private static final int JOURNAL_SIZE = 4;
+    private static final long JOURNAL_SEED = 42;
+
+    // the process killed by journal_survives_kill(): rotates a journaled cube in the order given by JOURNAL_SEED,
+    // printing how many rotations have returned, with a checkpoint every 500 of them
+    public static void main(String[] args) throws Exception {
+        Cube cube = new Cube(JOURNAL_SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {},
+                new Cube.Options().journal(Path.of(args[0]), Cube.Journaling.valueOf(args[2])));
+        Random random = new Random(JOURNAL_SEED);
+        for (int done = 1; ; done++) {
+            cube.rotate(random.nextInt(6), random.nextInt(JOURNAL_SIZE));
+            System.out.println(done);
+            if (done % 500 == 0) {
+                cube.checkpoint(Path.of(args[1]));
+            }
+        }
+    }
+
+    @Test
+    @Order(2200)
+    @DisplayName("The journal keeps every rotation that has returned when the process is killed")
+    public void journal_survives_kill() {
+        int KILL_AFTER = 1700;
+        String java = ProcessHandle.current().info().command().orElse("java");
+        try {
+            for (Cube.Journaling journaling : new Cube.Journaling[]{Cube.Journaling.SYNC, Cube.Journaling.GROUP}) {
+                Path journal = Files.createTempFile("cube", ".journal");
+                Path snapshot = journal.resolveSibling(journal.getFileName() + ".snapshot");
+                try {
+                    Process child = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                            "concurrentcube.CubeTest", journal.toString(), snapshot.toString(), journaling.name())
+                            .redirectErrorStream(true).start();
+                    int returned = 0;
+                    try (BufferedReader out = new BufferedReader(new InputStreamReader(child.getInputStream()))) {
+                        String line;
+                        while (returned < KILL_AFTER && (line = out.readLine()) != null) {
+                            returned = Integer.parseInt(line.trim());
+                        }
+                        child.toHandle().destroyForcibly(); // SIGKILL, leaving the pipe open for reading
+                        child.waitFor();
+                        // what it has printed before it died
+                        while ((line = out.readLine()) != null) {
+                            returned = Integer.parseInt(line.trim());
+                        }
+                    }
+
+                    long replayed;
+                    String shown;
+                    try (Cube recovered = new Cube(JOURNAL_SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {},
+                            () -> {}, new Cube.Options().journal(journal, journaling))) {
+                        replayed = recovered.recover(snapshot);
+                        shown = recovered.show();
+                    }
+
+                    // the rotation that was going on when the process died may be there or not
+                    Cube expected = new Cube(JOURNAL_SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+                    Random random = new Random(JOURNAL_SEED);
+                    for (int i = 0; i < returned; i++) {
+                        expected.rotate(random.nextInt(6), random.nextInt(JOURNAL_SIZE));
+                    }
+                    boolean found = shown.equals(expected.show());
+                    expected.rotate(random.nextInt(6), random.nextInt(JOURNAL_SIZE));
+                    found = found || shown.equals(expected.show());
+                    System.out.println(journaling + ": killed after " + returned + " rotations returned, " + replayed +
+                            " replayed after the last checkpoint");
+                    if (ASSERT) {
+                        assert returned >= KILL_AFTER;
+                        assert found;
+                    }
+                } finally {
+                    Files.deleteIfExists(journal);
+                    Files.deleteIfExists(snapshot);
+                    Files.deleteIfExists(snapshot.resolveSibling(snapshot.getFileName() + ".tmp"));
+                }
+            }
+        } catch (InterruptedException | IOException e) {
+            System.out.println("TEST " + test_num + " threw " + e);
+        }
+    }
+
+    @Test
+    @Order(2202)
+    @DisplayName("recover() comes back to the state after restore(), not to the one before it")
+    public void journal_keeps_restore() {
+        int SIZE = 4;
+        int ROTATIONS = 50;
+        Random random = new Random();
+        try {
+            for (boolean with_checkpoint : new boolean[]{false, true}) {
+                Path journal = Files.createTempFile("cube", ".journal");
+                Path snapshot = journal.resolveSibling(journal.getFileName() + ".snapshot");
+                try {
+                    Cube cube = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {},
+                            new Cube.Options().journal(journal, Cube.Journaling.SYNC));
+                    for (int i = 0; i < ROTATIONS; i++) {
+                        cube.rotate(random.nextInt(6), random.nextInt(SIZE));
+                    }
+                    if (with_checkpoint) {
+                        cube.checkpoint(snapshot);
+                    }
+
+                    Cube other = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+                    for (int i = 0; i < ROTATIONS; i++) {
+                        other.rotate(random.nextInt(6), random.nextInt(SIZE));
+                    }
+                    ByteBuffer other_state = ByteBuffer.allocate(other.snapshotSize());
+                    other.snapshot(other_state);
+                    other_state.flip();
+                    cube.restore(other_state);
+                    for (int i = 0; i < ROTATIONS; i++) {
+                        cube.rotate(random.nextInt(6), random.nextInt(SIZE));
+                    }
+
+                    cube.close();
+
+                    try (Cube recovered = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {},
+                            new Cube.Options().journal(journal, Cube.Journaling.SYNC))) {
+                        long replayed = recovered.recover(snapshot);
+                        if (ASSERT) {
+                            assert recovered.show().equals(cube.show());
+                            assert replayed == (with_checkpoint ? 1 + ROTATIONS : 1 + 2 * ROTATIONS);
+                        }
+                    }
+                } finally {
+                    Files.deleteIfExists(journal);
+                    Files.deleteIfExists(snapshot);
+                }
+            }
+        } catch (InterruptedException | IOException e) {
+            System.out.println("TEST " + test_num + " threw " + e);
+        }
+    }
+
+    @Test
+    @Order(2203)
+    @DisplayName("checkpoint() from many threads at once, while others rotate")
+    public void journal_concurrent_checkpoints() {
+        int SIZE = 4;
+        int THREAD_CNT = 4;
+        int ROUNDS = 20;
+        try {
+            Path journal = Files.createTempFile("cube", ".journal");
+            Path snapshot = journal.resolveSibling(journal.getFileName() + ".snapshot");
+            try {
+                String shown;
+                try (Cube cube = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {},
+                        new Cube.Options().journal(journal, Cube.Journaling.GROUP))) {
+                    AtomicInteger failures = new AtomicInteger(0);
+                    ArrayList<Thread> threads = new ArrayList<>();
+                    for (int t = 0; t < THREAD_CNT; t++) {
+                        boolean checkpointing = (t % 2 == 0);
+                        threads.add(new Thread(() -> {
+                            Random random = new Random();
+                            try {
+                                for (int round = 0; round < ROUNDS; round++) {
+                                    if (checkpointing) {
+                                        cube.checkpoint(snapshot);
+                                    } else {
+                                        cube.rotate(random.nextInt(6), random.nextInt(SIZE));
+                                    }
+                                }
+                            } catch (InterruptedException | IOException | RuntimeException e) {
+                                failures.incrementAndGet();
+                            }
+                        }));
+                    }
+                    for (Thread thread : threads) {
+                        thread.start();
+                    }
+                    for (Thread thread : threads) {
+                        thread.join();
+                    }
+                    if (ASSERT) {
+                        assert failures.get() == 0;
+                    }
+                    shown = cube.show();
+                }
+
+                try (Cube recovered = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {},
+                        new Cube.Options().journal(journal, Cube.Journaling.GROUP))) {
+                    recovered.recover(snapshot);
+                    if (ASSERT) {
+                        assert recovered.show().equals(shown);
+                    }
+                }
+            } finally {
+                Files.deleteIfExists(journal);
+                Files.deleteIfExists(snapshot);
+                Files.deleteIfExists(snapshot.resolveSibling(snapshot.getFileName() + ".tmp"));
+            }
+        } catch (InterruptedException | IOException e) {
+            System.out.println("TEST " + test_num + " threw " + e);
+        }
+    }
+
+    // the file of a journal, whose force() fails while failing is set
+    private static class FailingChannel extends FileChannel {
+        private final FileChannel file;
+        private volatile boolean failing = false;
+
+        FailingChannel(FileChannel file) {
+            this.file = file;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            if (failing) {
+                throw new IOException("the disk is gone");
+            }
+            file.force(metaData);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return file.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return file.read(dsts, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return file.write(src);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return file.write(srcs, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return file.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            file.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return file.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            file.truncate(size);
+            return this;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return file.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return file.transferFrom(src, position, count);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return file.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return file.write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return file.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return file.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return file.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            file.close();
+        }
+    }
+
+    @Test
+    @Order(2204)
+    @DisplayName("A rotation whose journal record has not reached the disk is not recovered")
+    public void journal_failed_force() {
+        for (Cube.Journaling journaling : new Cube.Journaling[]{Cube.Journaling.SYNC, Cube.Journaling.GROUP}) {
+            try {
+                Path file = Files.createTempFile("cube", ".journal");
+                try {
+                    FailingChannel channel = new FailingChannel(FileChannel.open(file, StandardOpenOption.READ,
+                            StandardOpenOption.WRITE));
+                    long replayed;
+                    boolean failed = false;
+                    boolean refused = false;
+                    try (Journal journal = new Journal(channel, journaling)) {
+                        journal.append(Journal.ROTATE, 0, 0);
+                        journal.append(Journal.ROTATE, 1, 0);
+                        channel.failing = true;
+                        try {
+                            journal.append(Journal.ROTATE, 2, 0);
+                        } catch (UncheckedIOException e) {
+                            failed = true;
+                        }
+                        channel.failing = false;
+                        try {
+                            journal.append(Journal.ROTATE, 3, 0);
+                        } catch (UncheckedIOException e) {
+                            refused = true;
+                        }
+                    }
+                    try (Journal journal = new Journal(file, journaling)) {
+                        replayed = journal.replay(0, (kind, side, layer, snapshot) -> {});
+                    }
+                    if (ASSERT) {
+                        assert failed;
+                        assert refused;
+                        assert replayed == 2;
+                    }
+                } finally {
+                    Files.deleteIfExists(file);
+                }
+            } catch (IOException e) {
+                System.out.println("TEST " + test_num + " threw " + e);
+            }
+        }
+    }
+
+    @Test
+    @Order(2201)
+    @DisplayName("Rotations per second without a journal, with SYNC and with GROUP")
+    public void journal_throughput() {
+        int SIZE = 8;
+        int THREAD_CNT = 8;
+        int ROTATIONS = 300;
+        try {
+            for (Cube.Journaling journaling : Cube.Journaling.values()) {
+                Path journal = Files.createTempFile("cube", ".journal");
+                try {
+                    long per_second;
+                    try (Cube cube = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {},
+                            new Cube.Options().journal(journal, journaling))) {
+                        per_second = rotate_randomly(cube, SIZE, THREAD_CNT, ROTATIONS);
+                    }
+                    System.out.println("Journal " + journaling + ", " + THREAD_CNT + " threads: " + per_second +
+                            " rotations/s");
+                } finally {
+                    Files.deleteIfExists(journal);
+                }
+            }
+        } catch (InterruptedException | IOException e) {
+            System.out.println("TEST " + test_num + " threw " + e);
+        }
+    }
+
+    @Test
+    @Order(2300)
+    @DisplayName("Cubes of a registry come back from their slots as they have been left")
+    public void registry_correctness() {
+        int SIZE = 4;
+        int CUBES = 200;
+        int HOT = 32; // 2 per shard
+        int ROTATIONS = 5000;
+        Random random = new Random();
+        try {
+            CubeRegistry registry = new CubeRegistry(SIZE, HOT);
+            long[] ids = new long[CUBES];
+            Cube[] mirrors = new Cube[CUBES];
+            for (int i = 0; i < CUBES; i++) {
+                ids[i] = registry.create();
+                mirrors[i] = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+            }
+            for (int i = 0; i < ROTATIONS; i++) {
+                int cube = random.nextInt(CUBES);
+                int side = random.nextInt(6);
+                int layer = random.nextInt(SIZE);
+                registry.rotate(ids[cube], side, layer);
+                mirrors[cube].rotate(side, layer);
+            }
+            if (ASSERT) {
+                assert registry.cubes() == CUBES;
+                assert registry.hotCubes() <= HOT;
+            }
+            for (int i = 0; i < CUBES; i++) {
+                if (ASSERT) {
+                    assert registry.show(ids[i]).equals(mirrors[i].show());
+                }
+            }
+
+            // a pinned cube stays hot while the others come and go
+            Cube pinned = registry.pin(ids[0]);
+            for (int i = 1; i < CUBES; i++) {
+                registry.rotate(ids[i], 0, 0);
+            }
+            pinned.rotate(1, 0);
+            mirrors[0].rotate(1, 0);
+            registry.unpin(ids[0]);
+            boolean refused = false;
+            try {
+                registry.unpin(ids[0]);
+            } catch (IllegalStateException e) {
+                refused = true;
+            }
+            if (ASSERT) {
+                assert registry.show(ids[0]).equals(mirrors[0].show());
+                assert refused;
+            }
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw " + e);
+        }
+    }
+
+    @Test
+    @Order(2302)
+    @DisplayName("Cubes created from many threads at once all get their slots")
+    public void registry_concurrent_create() {
+        int SIZE = 2;
+        int THREAD_CNT = 8;
+        int PER_THREAD = 10000; // more than fit into a few buffers of the arena
+        try {
+            CubeRegistry registry = new CubeRegistry(SIZE, 64);
+            String solved = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {}).show();
+            ArrayList<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < THREAD_CNT; t++) {
+                threads.add(new Thread(() -> {
+                    for (int i = 0; i < PER_THREAD; i++) {
+                        registry.create();
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            int wrong = 0;
+            for (long id = 0; id < registry.cubes(); id++) {
+                if (!registry.show(id).equals(solved)) {
+                    wrong++;
+                }
+            }
+            if (ASSERT) {
+                assert registry.cubes() == (long) THREAD_CNT * PER_THREAD;
+                assert wrong == 0;
+            }
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw " + e);
+        }
+    }
+
+    @Test
+    @Order(2303)
+    @DisplayName("A cube whose pin() is interrupted while another cube is sent back does not stay pinned")
+    public void registry_pin_interrupted() {
+        int SIZE = 3;
+        try {
+            CubeRegistry registry = new CubeRegistry(SIZE, 16); // 1 per shard
+            for (int i = 0; i <= 16; i++) {
+                registry.create();
+            }
+            String solved = registry.show(16);
+
+            // cube 0 is hot and not pinned, but busy: its rotation waits for a BLOCK subscriber taking nothing,
+            // so sending it back to its slot waits too
+            Cube busy = registry.pin(0);
+            AtomicReference<Flow.Subscription> subscription = new AtomicReference<>();
+            busy.rotationEvents(Cube.Overflow.BLOCK, 1).subscribe(new Flow.Subscriber<RotationEvent>() {
+                @Override
+                public void onSubscribe(Flow.Subscription s) {
+                    subscription.set(s);
+                }
+
+                @Override
+                public void onNext(RotationEvent event) {
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                }
+
+                @Override
+                public void onComplete() {
+                }
+            });
+            registry.unpin(0);
+            Thread rotating = new Thread(() -> {
+                try {
+                    busy.rotate(0, 0);
+                    busy.rotate(0, 0);
+                } catch (InterruptedException e) {
+                    System.out.println("TEST " + test_num + " rotating thread threw " + e);
+                }
+            });
+            rotating.start();
+            Thread.sleep(100);
+
+            // cube 16 of the same shard makes cube 0 go back
+            AtomicBoolean interrupted = new AtomicBoolean(false);
+            Thread pinning = new Thread(() -> {
+                try {
+                    registry.rotate(16, 0, 0);
+                } catch (InterruptedException e) {
+                    interrupted.set(true);
+                }
+            });
+            pinning.start();
+            Thread.sleep(100);
+            pinning.interrupt();
+            pinning.join();
+
+            subscription.get().cancel();
+            rotating.join();
+            boolean refused = false;
+            try {
+                registry.unpin(16);
+            } catch (IllegalStateException e) {
+                refused = true;
+            }
+            if (ASSERT) {
+                assert interrupted.get();
+                assert refused;
+                assert registry.show(16).equals(solved);
+                assert registry.hotCubes() <= 16;
+            }
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw " + e);
+        }
+    }
+
+    @Test
+    @Order(2301)
+    @DisplayName("Memory per idle cube and latency of hot and cold cubes of a registry")
+    public void registry_footprint_and_latency() {
+        int SIZE = 3;
+        int CUBES = 100000;
+        int HOT = 1024;
+        int LOOKUPS = 200000;
+        Random random = new Random();
+        try {
+            long heap_before = used_heap();
+            Cube[] plain = new Cube[CUBES];
+            for (int i = 0; i < CUBES; i++) {
+                plain[i] = new Cube(SIZE, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+            }
+            long plain_bytes = (used_heap() - heap_before) / plain.length; // plain must still be there
+            plain = null;
+
+            heap_before = used_heap();
+            CubeRegistry registry = new CubeRegistry(SIZE, HOT);
+            for (int i = 0; i < CUBES; i++) {
+                registry.create();
+            }
+            // the registry has next to nothing on the heap, so the difference may come out below 0
+            long registry_bytes = (Math.max(0, used_heap() - heap_before) + registry.arenaBytes()) / CUBES;
+            System.out.println(SIZE + "x" + SIZE + " cube: " + plain_bytes + " bytes as a Cube, " + registry_bytes +
+                    " bytes idle in a registry");
+
+            // the same ids over and over stay hot, random ones of all the cubes are almost always cold
+            long[] times = new long[2];
+            for (int round = 0; round < 2; round++) {
+                for (int hot = 0; hot < 2; hot++) {
+                    long start = System.nanoTime();
+                    for (int i = 0; i < LOOKUPS; i++) {
+                        long id = (hot == 1 ? random.nextInt(HOT / 2) : random.nextInt(CUBES));
+                        registry.rotate(id, random.nextInt(6), random.nextInt(SIZE));
+                    }
+                    times[hot] = (System.nanoTime() - start) / LOOKUPS;
+                }
+            }
+            System.out.println("Registry rotation: " + times[1] + " ns hot, " + times[0] + " ns cold");
+            if (ASSERT) {
+                assert registry_bytes * 10 <= plain_bytes;
+                assert registry.hotCubes() <= HOT;
+            }
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw " + e);
+        }
+    }
+
+    @Test
+    @Order(2400)
+    @DisplayName("Small cube heap footprint")
+    public void small_cube_footprint() {
+        int CUBES = 20000;
+        for (int size = 1; size <= 3; size += 2) {
+            long heap_before = used_heap();
+            Cube[] cubes = new Cube[CUBES];
+            for (int i = 0; i < CUBES; i++) {
+                cubes[i] = new Cube(size, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+            }
+            long per_cube = (used_heap() - heap_before) / cubes.length;
+            System.out.println(size + "x" + size + " cube takes ~" + per_cube + " bytes of heap");
+            if (ASSERT) {
+                // six faces that are only their pieces, the rest is the cube's own synchronization
+                assert per_cube < 2500;
+            }
+        }
+    }
+
+    @Test
+    @Order(2500)
+    @DisplayName("applySequence() leaves the cube as rotateAll() does")
+    public void apply_sequence_correctness() {
+        Random random = new Random();
+        // one thread rotates in place, four compile the permutation
+        ForkJoinPool[] pools = {new ForkJoinPool(1), new ForkJoinPool(4)};
+        try {
+            for (int size = 1; size <= 9; size++) {
+                for (int length : new int[]{0, 1, 7, 1000, 20000}) {
+                    for (ForkJoinPool pool : pools) {
+                        int[] sides = new int[length];
+                        int[] layers = new int[length];
+                        random_scramble(size, sides, layers, random);
+                        AtomicInteger callbacks = new AtomicInteger(0);
+                        Cube applied = new Cube(size, (side, layer) -> callbacks.incrementAndGet(),
+                                (side, layer) -> callbacks.incrementAndGet(), () -> {}, () -> {},
+                                new Cube.Options().stateHash(true).pool(pool));
+                        Cube rotated = new Cube(size, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {},
+                                new Cube.Options().stateHash(true));
+                        // not from the solved cube
+                        int first_side = random.nextInt(6);
+                        int first_layer = random.nextInt(size);
+                        applied.rotate(first_side, first_layer);
+                        rotated.rotate(first_side, first_layer);
+                        applied.applySequence(sides, layers);
+                        rotated.rotateAll(sides, layers);
+                        if (ASSERT) {
+                            assert applied.show().equals(rotated.show());
+                            assert applied.stateHash() == rotated.stateHash();
+                            assert callbacks.get() == 2;
+                        }
+                    }
+                }
+            }
+
+            Cube cube = new Cube(3, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+            boolean refused = false;
+            try {
+                cube.applySequence(new int[]{0, 6}, new int[]{0, 0});
+            } catch (IllegalArgumentException e) {
+                refused = true;
+            }
+            if (ASSERT) {
+                assert refused;
+                assert cube.show().equals(new Cube(3, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {})
+                        .show());
+            }
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw " + e);
+        } finally {
+            for (ForkJoinPool pool : pools) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    @Test
+    @Order(2501)
+    @DisplayName("Long sequences on large cubes: rotateAll() against applySequence()")
+    public void apply_sequence_throughput() {
+        int ROTATIONS = 1000000;
+        int ROUNDS = 2;
+        Random random = new Random();
+        ForkJoinPool single = new ForkJoinPool(1);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int size : new int[]{32, 128, 256}) {
+                int[] sides = new int[ROTATIONS];
+                int[] layers = new int[ROTATIONS];
+                random_scramble(size, sides, layers, random);
+                Cube rotated = new Cube(size, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {});
+                Cube applied = new Cube(size, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {},
+                        new Cube.Options().pool(single));
+                Cube composed = new Cube(size, (side, layer) -> {}, (side, layer) -> {}, () -> {}, () -> {},
+                        new Cube.Options().pool(pool));
+                long rotate_time = Long.MAX_VALUE;
+                long apply_time = Long.MAX_VALUE;
+                long compose_time = Long.MAX_VALUE;
+                for (int round = 0; round < ROUNDS; round++) {
+                    long start = System.nanoTime();
+                    rotated.rotateAll(sides, layers);
+                    rotate_time = Math.min(rotate_time, System.nanoTime() - start);
+                    start = System.nanoTime();
+                    applied.applySequence(sides, layers);
+                    apply_time = Math.min(apply_time, System.nanoTime() - start);
+                    start = System.nanoTime();
+                    composed.applySequence(sides, layers);
+                    compose_time = Math.min(compose_time, System.nanoTime() - start);
+                }
+                System.out.println(size + "x" + size + ", " + ROTATIONS + " rotations: rotateAll " +
+                        rotate_time / 1000000 + " ms, applySequence " + apply_time / 1000000 + " ms in place, " +
+                        compose_time / 1000000 + " ms composed on " + pool.getParallelism() + " threads (" +
+                        Runtime.getRuntime().availableProcessors() + " cores)");
+                if (ASSERT) {
+                    assert applied.show().equals(rotated.show());
+                    assert composed.show().equals(rotated.show());
+                }
+            }
+        } catch (InterruptedException e) {
+            System.out.println("TEST " + test_num + " threw " + e);
+        } finally {
+            single.shutdown();
+            pool.shutdown();
+        }
+    }
+
     @AfterAll
     @DisplayName("Testing procedure finished!")
     static void after_testing() {